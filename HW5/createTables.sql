@@ -3,6 +3,7 @@ CREATE TABLE Users (
 	salt varbinary(20),		-- cryptographic salt for computing the hash
 	hash varbinary(20),		-- hashed password
 	balance int,			-- current account balance 
+	version int NOT NULL DEFAULT 0,	-- incremented by every update, for optimistic concurrency
 	PRIMARY KEY (username)
 );
 
@@ -14,14 +15,62 @@ CREATE TABLE Reservations (
 	canceled int, 			-- boolean: 1 is paid, 0 is unpaid
 	fid1 int,			-- id of first flight in this reservation
 	fid2 int,			-- id of second flight in this reservation (optional)
+	extra_legs int NOT NULL DEFAULT 0,	-- number of flights after the second, in ReservationLegs
+	version int NOT NULL DEFAULT 0,	-- incremented by every update, for optimistic concurrency
 	PRIMARY KEY (id),
 	FOREIGN KEY (fid1) REFERENCES Flights (fid),
 	FOREIGN KEY (fid2) REFERENCES Flights (fid)
 );
 
+CREATE TABLE ReservationLegs (
+	id int,				-- reservation with more than two flights
+	leg int,			-- 3 for its third flight, 4 for its fourth and so on
+	fid int,			-- id of the flight
+	PRIMARY KEY (id, leg),
+	FOREIGN KEY (id) REFERENCES Reservations (id),
+	FOREIGN KEY (fid) REFERENCES Flights (fid)
+);
+
 CREATE TABLE BookedSeats (
 	fid int,
 	seats int,			-- number of seats booked on the flight
 	PRIMARY KEY (fid),
 	FOREIGN KEY (fid) REFERENCES Flights (fid)
 );
+
+CREATE TABLE ReservationIds (
+	id int,				-- always 1, the table holds a single row
+	last_id int,			-- id of the most recent successful reservation
+	PRIMARY KEY (id)
+);
+
+INSERT INTO ReservationIds VALUES (1, 0);
+
+CREATE TABLE JournalCheckpoint (
+	id int,				-- always 1, the table holds a single row
+	position bigint,		-- journal position up to which JournaledStorage applied the journal
+	PRIMARY KEY (id)
+);
+
+INSERT INTO JournalCheckpoint VALUES (1, 0);
+
+CREATE TABLE OneHops (
+	origin_city varchar(34),	-- origin of the first flight
+	dest_city varchar(34),		-- destination of the second flight
+	day_of_month int,
+	hop_rank int,			-- 1 for the shortest connection of the route on the day
+	fid1 int,			-- id of the first flight
+	fid2 int,			-- id of the second flight
+	actual_time int,		-- total flight time of both flights
+	PRIMARY KEY (origin_city, dest_city, day_of_month, hop_rank),
+	FOREIGN KEY (fid1) REFERENCES Flights (fid),
+	FOREIGN KEY (fid2) REFERENCES Flights (fid)
+);
+
+CREATE TABLE OneHopLimit (
+	id int,				-- always 1, the table holds a single row
+	top_n int,			-- connections OneHops keeps per route and day, 0 until built
+	PRIMARY KEY (id)
+);
+
+INSERT INTO OneHopLimit VALUES (1, 0);
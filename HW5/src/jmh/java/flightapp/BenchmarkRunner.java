@@ -0,0 +1,39 @@
+package flightapp;
+
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the JMH benchmarks of the shaded benchmarks.jar.
+ *
+ * Without arguments, runs every benchmark first on one thread and then on one
+ * thread per processor, so single-session latency and contended throughput can be
+ * compared. With arguments, behaves exactly like the JMH command line, e.g.
+ *
+ *   java -jar target/benchmarks.jar TransactionBenchmark.search -t 8 -p flights=10000
+ *
+ * Run from the HW5 directory, the benchmarks read createTables.sql from there.
+ */
+public class BenchmarkRunner {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length > 0) {
+      org.openjdk.jmh.Main.main(args);
+      return;
+    }
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (int threads : new int[] { 1, processors }) {
+      Options options = new OptionsBuilder()
+          .include(TransactionBenchmark.class.getSimpleName())
+          .threads(threads)
+          .result("target/jmh-" + threads + "-threads.json")
+          .resultFormat(org.openjdk.jmh.results.format.ResultFormatType.JSON)
+          .build();
+      new Runner(options).run();
+      if (processors == 1) {
+        break;
+      }
+    }
+  }
+}
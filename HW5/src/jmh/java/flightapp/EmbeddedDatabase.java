@@ -0,0 +1,197 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * An in-memory H2 database, in SQL Server compatibility mode, holding a synthetic
+ * Flights table and the application tables from createTables.sql.
+ *
+ * Every day has {@link #DIRECTS_PER_DAY} direct flights from {@link #ORIGIN} to
+ * {@link #DESTINATION}, and a tenth of the other flights each leave the origin or
+ * reach the destination, so one-hop searches find more itineraries the more flights
+ * there are. The rest of the flights connect random cities. Capacities
+ * are large enough that bookings never run out of seats during a benchmark.
+ */
+public class EmbeddedDatabase implements AutoCloseable {
+  static final String ORIGIN = "City0 ST";
+  static final String DESTINATION = "City1 ST";
+  static final int DAYS = 31;
+  static final int DIRECTS_PER_DAY = 5;
+
+  private static final int CITIES = 100;
+  private static final int CAPACITY = 1000000;
+  private static final String[] CARRIERS = { "AA", "AS", "B6", "DL", "UA", "WN" };
+
+  private static final String CREATE_FLIGHTS = ""
+      + "CREATE TABLE Flights ("
+      + "  fid int PRIMARY KEY,"
+      + "  month_id int,"
+      + "  day_of_month int,"
+      + "  day_of_week_id int,"
+      + "  carrier_id varchar(7),"
+      + "  flight_num int,"
+      + "  origin_city varchar(34),"
+      + "  origin_state varchar(47),"
+      + "  dest_city varchar(34),"
+      + "  dest_state varchar(46),"
+      + "  departure_delay int,"
+      + "  taxi_out int,"
+      + "  arrival_delay int,"
+      + "  canceled int,"
+      + "  actual_time int,"
+      + "  distance int,"
+      + "  capacity int,"
+      + "  price int"
+      + ")";
+
+  private static final String INSERT_FLIGHT = ""
+      + "INSERT INTO Flights VALUES (?, 7, ?, ?, ?, ?, ?, 'ST', ?, 'ST', 0, 0, 0, 0, ?, ?, ?, ?)";
+
+  private final String url;
+  private final Connection keepAlive;
+  private final ConnectionPool pool;
+
+  /**
+   * Create a database named after the given name holding the given number of flights.
+   *
+   * @param name     database name, unique per live instance
+   * @param flights  number of synthetic flights
+   * @param poolSize connections in the pool handed to Query sessions
+   */
+  public EmbeddedDatabase(String name, int flights, int poolSize) throws SQLException, IOException {
+    this.url = "jdbc:h2:mem:" + name + ";MODE=MSSQLServer;DATABASE_TO_UPPER=FALSE;LOCK_TIMEOUT=10000";
+
+    // The database lives as long as one connection to it is open.
+    this.keepAlive = DriverManager.getConnection(url);
+    try (Statement statement = keepAlive.createStatement()) {
+      statement.execute(CREATE_FLIGHTS);
+    }
+    insertFlights(flights);
+    for (String sql : readStatements(Paths.get("createTables.sql"))) {
+      try (Statement statement = keepAlive.createStatement()) {
+        statement.execute(sql);
+      }
+    }
+
+    this.pool = ConnectionPool.create(this::open, poolSize);
+  }
+
+  /**
+   * Open a connection configured like the ones Query opens to SQL Server.
+   */
+  private Connection open() throws SQLException {
+    Connection conn = DriverManager.getConnection(url);
+    conn.setAutoCommit(true);
+    conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+    return conn;
+  }
+
+  public ConnectionPool getPool() {
+    return pool;
+  }
+
+  /**
+   * Create a user with the given password and a balance that never runs out.
+   */
+  public void createUser(String username, String password) throws SQLException {
+    session().transaction_createCustomer(username, password, Integer.MAX_VALUE / 2);
+  }
+
+  /**
+   * Return a new session on the pool. Sessions on a shared pool hold no connection
+   * between transactions, so they need not be closed.
+   */
+  public Query session() throws SQLException {
+    return new Query(pool);
+  }
+
+  /**
+   * Delete the given user's reservations so that every day can be booked again. Booked
+   * seats are left alone, capacities are too large for them to matter.
+   */
+  public void clearReservations(String username) throws SQLException {
+    try (Connection conn = DriverManager.getConnection(url);
+         PreparedStatement delete = conn.prepareStatement("DELETE FROM Reservations WHERE username = ?")) {
+      delete.setString(1, username);
+      delete.executeUpdate();
+    }
+  }
+
+  private void insertFlights(int flights) throws SQLException {
+    Random random = new Random(344);
+    keepAlive.setAutoCommit(false);
+    try (PreparedStatement insert = keepAlive.prepareStatement(INSERT_FLIGHT)) {
+      for (int fid = 1; fid <= flights; fid++) {
+        int day = (fid - 1) % DAYS + 1;
+        int index = (fid - 1) / DAYS;
+        int origin;
+        int dest;
+        if (index < DIRECTS_PER_DAY) {
+          // A direct flight between the benchmarked cities.
+          origin = 0;
+          dest = 1;
+        } else if (index % 10 == 0) {
+          // The first leg of a one-hop itinerary.
+          origin = 0;
+          dest = 2 + random.nextInt(CITIES - 2);
+        } else if (index % 10 == 1) {
+          // The second leg of a one-hop itinerary.
+          origin = 2 + random.nextInt(CITIES - 2);
+          dest = 1;
+        } else {
+          origin = random.nextInt(CITIES);
+          dest = (origin + 1 + random.nextInt(CITIES - 1)) % CITIES;
+        }
+
+        insert.setInt(1, fid);
+        insert.setInt(2, day);
+        insert.setInt(3, (day - 1) % 7 + 1);
+        insert.setString(4, CARRIERS[random.nextInt(CARRIERS.length)]);
+        insert.setInt(5, 100 + random.nextInt(9000));
+        insert.setString(6, "City" + origin + " ST");
+        insert.setString(7, "City" + dest + " ST");
+        insert.setInt(8, 30 + random.nextInt(400));
+        insert.setInt(9, 100 + random.nextInt(3000));
+        insert.setInt(10, CAPACITY);
+        insert.setInt(11, 50 + random.nextInt(950));
+        insert.addBatch();
+        if (fid % 1000 == 0) {
+          insert.executeBatch();
+        }
+      }
+      insert.executeBatch();
+      keepAlive.commit();
+    } finally {
+      keepAlive.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Split a SQL script into statements, dropping comments.
+   */
+  private static List<String> readStatements(Path script) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    for (String line : Files.readAllLines(script, StandardCharsets.UTF_8)) {
+      int comment = line.indexOf("--");
+      sb.append(comment < 0 ? line : line.substring(0, comment)).append('\n');
+    }
+
+    List<String> statements = new ArrayList<>();
+    for (String sql : sb.toString().split(";")) {
+      if (!sql.trim().isEmpty()) {
+        statements.add(sql.trim());
+      }
+    }
+    return statements;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    pool.close();
+    keepAlive.close();
+  }
+}
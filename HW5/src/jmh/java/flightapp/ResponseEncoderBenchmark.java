@@ -0,0 +1,75 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmark of formatting a search response, by the {@link ResponseEncoder}
+ * and by the StringBuffer concatenation Query used before it.
+ *
+ * Neither touches a database. Run it with the GC profiler to compare the bytes
+ * allocated per response (gc.alloc.rate.norm):
+ *
+ *   java -jar target/benchmarks.jar ResponseEncoderBenchmark -prof gc
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ResponseEncoderBenchmark {
+  @Param({ "100" })
+  int count;
+
+  List<Query.Itinerary> itineraries;
+  ResponseEncoder encoder;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    // Half direct and half one-hop itineraries, like a typical search of that size.
+    itineraries = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Query.Flight first = flight(2 * i + 1, "Seattle WA", i % 2 == 0 ? "Boston MA" : "Chicago IL");
+      Query.Flight second = flight(2 * i + 2, "Chicago IL", "Boston MA");
+      itineraries.add(i % 2 == 0
+          ? new Query.Itinerary(first, null, first.time, true)
+          : new Query.Itinerary(first, second, first.time + second.time, false));
+    }
+    encoder = new ResponseEncoder();
+  }
+
+  private static Query.Flight flight(int fid, String origin, String dest) {
+    return new Query.Flight(fid, 1 + fid % 31, "AS", Integer.toString(100 + fid), origin, dest,
+        90 + fid % 200, 100 + fid % 50, 100 + fid % 900);
+  }
+
+  @Benchmark
+  public String encoder() {
+    return encoder.itineraries(itineraries).toString();
+  }
+
+  @Benchmark
+  public int encoderLength() {
+    // The cost of formatting alone, as when the response is written out with writeTo().
+    return encoder.itineraries(itineraries).length();
+  }
+
+  @Benchmark
+  public String stringBuffer() {
+    StringBuffer sb = new StringBuffer();
+    int n = itineraries.size();
+    for (int i = 0; i < n; i++) {
+      sb.append("Itinerary " + i);
+
+      Query.Itinerary itinerary = itineraries.get(i);
+      if (itinerary.isDirectFlight) {
+        sb.append(": 1 flight(s), " + itinerary.flightTime + " minutes\n" + itinerary.flight1.toString() + "\n");
+      } else {
+        sb.append(": 2 flight(s), " + itinerary.flightTime + " minutes\n" + itinerary.flight1.toString() + "\n"
+            + itinerary.flight2.toString() + "\n");
+      }
+    }
+    return sb.toString();
+  }
+}
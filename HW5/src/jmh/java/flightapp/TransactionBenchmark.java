@@ -0,0 +1,171 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * JMH benchmarks of the Query transactions against an {@link EmbeddedDatabase}.
+ *
+ * Every benchmark thread is its own logged in user with its own session; sessions
+ * share the database's connection pool. Searches and reservation listings are
+ * measured as throughput. Bookings, payments and cancellations change state that
+ * runs out (a user books at most one flight a day), so they are measured one batch
+ * of {@link EmbeddedDatabase#DAYS} calls at a time with the state reset between
+ * iterations.
+ *
+ * The search cache is disabled so that searches measure the route index or the
+ * database rather than a cache hit, and the @@TRANCOUNT probe is disabled because
+ * it is SQL Server specific.
+ */
+@Fork(value = 1, jvmArgsAppend = { "-Dflightapp.search_cache_size=0", "-Dflightapp.check_dangling=false" })
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TransactionBenchmark {
+  private static final AtomicInteger users = new AtomicInteger();
+
+  /**
+   * The database, shared by every thread.
+   */
+  @State(Scope.Benchmark)
+  public static class Database {
+    @Param({ "10000", "100000" })
+    int flights;
+
+    // Whether searches use the in-memory route index or query the database
+    @Param({ "true", "false" })
+    String routeIndex;
+
+    EmbeddedDatabase db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+      // Read once, by the first session of the forked JVM.
+      System.setProperty("flightapp.route_index", routeIndex);
+      int threads = Math.max(64, Runtime.getRuntime().availableProcessors());
+      db = new EmbeddedDatabase("flightapp", flights, threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+      db.close();
+    }
+  }
+
+  /**
+   * A logged in user of one benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Session {
+    EmbeddedDatabase db;
+    String username;
+    Query q;
+    int day;
+
+    @Setup(Level.Trial)
+    public void setUp(Database database) throws SQLException {
+      db = database.db;
+      username = "bench" + users.incrementAndGet();
+      db.createUser(username, "password");
+      q = db.session();
+      q.transaction_login(username, "password");
+    }
+
+    int nextDay() {
+      day = day % EmbeddedDatabase.DAYS + 1;
+      return day;
+    }
+  }
+
+  /**
+   * A user with nothing booked at the start of every iteration.
+   */
+  @State(Scope.Thread)
+  public static class Booker extends Session {
+    @Setup(Level.Iteration)
+    public void clear() throws SQLException {
+      db.clearReservations(username);
+      day = 0;
+    }
+  }
+
+  /**
+   * A user with one unpaid reservation on every day at the start of every iteration.
+   */
+  @State(Scope.Thread)
+  public static class Reserver extends Session {
+    int[] reservations = new int[EmbeddedDatabase.DAYS];
+    int next;
+
+    @Setup(Level.Iteration)
+    public void book() throws SQLException {
+      db.clearReservations(username);
+      for (int i = 0; i < reservations.length; i++) {
+        q.transaction_search(EmbeddedDatabase.ORIGIN, EmbeddedDatabase.DESTINATION, true, i + 1, 1);
+        String booked = q.transaction_book(0);
+        if (!booked.startsWith("Booked flight(s), reservation ID: ")) {
+          throw new IllegalStateException(booked);
+        }
+        reservations[i] = Integer.parseInt(booked.substring(booked.lastIndexOf(' ') + 1).trim());
+      }
+      next = 0;
+    }
+
+    int nextReservation() {
+      return reservations[next++];
+    }
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public String searchDirect(Session s) {
+    return s.q.transaction_search(EmbeddedDatabase.ORIGIN, EmbeddedDatabase.DESTINATION, true, s.nextDay(),
+        EmbeddedDatabase.DIRECTS_PER_DAY);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public String searchOneHop(Session s) {
+    return s.q.transaction_search(EmbeddedDatabase.ORIGIN, EmbeddedDatabase.DESTINATION, false, s.nextDay(),
+        3 * EmbeddedDatabase.DIRECTS_PER_DAY);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public String reservations(Reserver s) {
+    return s.q.transaction_reservations();
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  public String login(Session s) throws SQLException {
+    return s.db.session().transaction_login(s.username, "password");
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 10, batchSize = EmbeddedDatabase.DAYS)
+  @Measurement(iterations = 50, batchSize = EmbeddedDatabase.DAYS)
+  public String searchAndBook(Booker s) {
+    s.q.transaction_search(EmbeddedDatabase.ORIGIN, EmbeddedDatabase.DESTINATION, true, s.nextDay(), 1);
+    return s.q.transaction_book(0);
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 10, batchSize = EmbeddedDatabase.DAYS)
+  @Measurement(iterations = 50, batchSize = EmbeddedDatabase.DAYS)
+  public String pay(Reserver s) {
+    return s.q.transaction_pay(s.nextReservation());
+  }
+
+  @Benchmark
+  @BenchmarkMode(Mode.SingleShotTime)
+  @Warmup(iterations = 10, batchSize = EmbeddedDatabase.DAYS)
+  @Measurement(iterations = 50, batchSize = EmbeddedDatabase.DAYS)
+  public String cancel(Reserver s) {
+    return s.q.transaction_cancel(s.nextReservation());
+  }
+}
@@ -0,0 +1,130 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * An asynchronous view of one Query session.
+ *
+ * Every transaction returns a CompletableFuture of the same response the Query
+ * method returns, and runs on the executor, by default on a virtual thread of its
+ * own when the runtime has them. A session still runs one transaction at a time, in
+ * the order they were called: each one starts once the previous one has finished,
+ * whether it succeeded or not. Work that doesn't depend on one session, such as
+ * several searches, fans out over several sessions of the same storage:
+ *
+ *   AsyncQuery a = new AsyncQuery(storage);
+ *   AsyncQuery b = new AsyncQuery(storage);
+ *   CompletableFuture.allOf(a.search("Seattle WA", "Boston MA", false, 1, 10),
+ *                           b.search("Seattle WA", "Chicago IL", false, 1, 10));
+ *
+ * No thread is held between transactions, so many idle sessions cost no threads.
+ */
+public class AsyncQuery implements AutoCloseable {
+  // Let every session without an executor of its own share one.
+  private static final ExecutorService sharedExecutor = VirtualThreads.newThreadPerTaskExecutor("flightapp-async");
+
+  private final Query q;
+  private final Executor executor;
+
+  // Let tail complete once the last transaction called on the session has finished.
+  private CompletableFuture<?> tail = CompletableFuture.completedFuture(null);
+
+  /**
+   * Class constructor. Opens a session of the given storage that runs on the shared
+   * executor.
+   */
+  public AsyncQuery(Storage storage) throws SQLException {
+    this(new Query(storage), sharedExecutor);
+  }
+
+  /**
+   * Class constructor.
+   *
+   * @param q        the session, which must not be used directly anymore
+   * @param executor runs the transactions
+   */
+  public AsyncQuery(Query q, Executor executor) {
+    this.q = q;
+    this.executor = executor;
+  }
+
+  public CompletableFuture<String> login(String username, String password) {
+    return submit(() -> q.transaction_login(username, password));
+  }
+
+  public CompletableFuture<String> createCustomer(String username, String password, int initAmount) {
+    return submit(() -> q.transaction_createCustomer(username, password, initAmount));
+  }
+
+  public CompletableFuture<String> search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries) {
+    return submit(() -> q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries));
+  }
+
+  public CompletableFuture<String> book(int itineraryId) {
+    return submit(() -> q.transaction_book(itineraryId));
+  }
+
+  public CompletableFuture<String> pay(int reservationId) {
+    return submit(() -> q.transaction_pay(reservationId));
+  }
+
+  public CompletableFuture<String> reservations() {
+    return submit(q::transaction_reservations);
+  }
+
+  public CompletableFuture<String> cancel(int reservationId) {
+    return submit(() -> q.transaction_cancel(reservationId));
+  }
+
+  /**
+   * Execute a command of the REPL, like FlightService.execute(). The future fails
+   * with the exception execute() would throw, such as NumberFormatException.
+   */
+  public CompletableFuture<String> execute(String command) {
+    return submit(() -> FlightService.execute(q, command));
+  }
+
+  /**
+   * Close the session once every transaction called so far has finished. The
+   * returned future fails if closing did.
+   */
+  public CompletableFuture<Void> closeAsync() {
+    return submit(() -> {
+      try {
+        q.closeConnection();
+      } catch (SQLException e) {
+        throw new CompletionException(e);
+      }
+      return null;
+    }).thenApply(ignored -> null);
+  }
+
+  /**
+   * Close the session once every transaction called so far has finished, waiting for
+   * it.
+   */
+  @Override
+  public void close() throws SQLException {
+    try {
+      closeAsync().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof SQLException) {
+        throw (SQLException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Run the given transaction after every one called before it.
+   */
+  private synchronized <T> CompletableFuture<T> submit(Supplier<T> transaction) {
+    CompletableFuture<T> result = tail.handleAsync((previous, failure) -> transaction.get(), executor);
+    tail = result;
+    return result;
+  }
+}
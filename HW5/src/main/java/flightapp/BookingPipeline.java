@@ -0,0 +1,230 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coalesces concurrent bookings of the same flights into group commits.
+ *
+ * Bookings queue in a lane per itinerary, that is per flight for direct
+ * itineraries. The first booking to reach an idle lane leads it: it waits up to the
+ * batch window for more bookings to join, up to the batch size, then books the
+ * whole batch in one transaction of its own session and hands every booking its
+ * result. Bookings that arrive meanwhile wait for the next batch, which the first of
+ * them leads. No threads are started, so a flash sale on a few flights runs one
+ * transaction per batch instead of one per booking, all contending for the same
+ * BookedSeats rows.
+ */
+public class BookingPipeline {
+    // Let leaders wait this long for a batch to fill, in nanoseconds.
+    private final long windowNanos;
+
+    // Let a batch hold at most this many bookings.
+    private final int maxBatch;
+
+    // Let lanes map the flights of an itinerary to its lane.
+    private final ConcurrentMap<String, Lane> lanes;
+
+    /**
+     * Books a batch of bookings of the same flights, in order, in one transaction.
+     */
+    interface Batch {
+	/**
+	 * Return the result of Storage.Session.book() for each of the given bookings.
+	 */
+	int[] book(List<Request> requests) throws SQLException;
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param windowMillis how long a batch waits for more bookings, in milliseconds
+     * @param maxBatch     most bookings in one batch, must be positive
+     */
+    public BookingPipeline(long windowMillis, int maxBatch) {
+	this(windowMillis, maxBatch, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Class constructor keeping the lanes in the given map, which must be empty.
+     */
+    BookingPipeline(long windowMillis, int maxBatch, ConcurrentMap<String, Lane> lanes) {
+	if (maxBatch <= 0) {
+	    throw new IllegalArgumentException("maxBatch must be positive");
+	}
+	this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+	this.maxBatch = maxBatch;
+	this.lanes = lanes;
+    }
+
+    /**
+     * Return a pipeline configured by the flightapp.booking_batch_window_ms (default 2)
+     * and flightapp.booking_batch_size (default 64) system properties.
+     */
+    public static BookingPipeline fromSystemProperties() {
+	return new BookingPipeline(Long.getLong("flightapp.booking_batch_window_ms", 2),
+		Integer.getInteger("flightapp.booking_batch_size", 64));
+    }
+
+    /**
+     * Book the itinerary for the user along with whatever bookings of the same flights
+     * join it, returning what Storage.Session.book() would. If this booking leads its
+     * batch, the given batch books it.
+     */
+    public int book(String username, Query.Itinerary itinerary, Batch batch) throws SQLException {
+	String key = key(itinerary);
+	Request request = new Request(username, itinerary);
+
+	// An interrupt doesn't stop the wait, since the booking may already be in a
+	// batch, but stays pending.
+	boolean interrupted = false;
+	Lane lane;
+	while (true) {
+	    lane = lanes.computeIfAbsent(key, k -> new Lane());
+	    synchronized (lane) {
+		// Lanes are only removed under their lock, so a lane that is still mapped
+		// now stays so until the booking is queued. One removed since it was
+		// looked up must not be led alongside its replacement.
+		if (lanes.get(key) != lane) {
+		    continue;
+		}
+
+		lane.queue.add(request);
+		if (lane.busy) {
+		    if (lane.queue.size() >= maxBatch) {
+			lane.notifyAll();
+		    }
+		    while (!request.done && !request.leading) {
+			interrupted |= await(lane, 0);
+		    }
+		} else {
+		    lane.busy = true;
+		    request.leading = true;
+		}
+	    }
+	    break;
+	}
+
+	if (!request.done) {
+	    interrupted |= lead(key, lane, batch);
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+	if (request.error != null) {
+	    throw request.error;
+	}
+	return request.result;
+    }
+
+    /**
+     * Wait for the batch to fill, book it and pass the lane on to the next batch.
+     * Return true if the thread was interrupted meanwhile.
+     */
+    private boolean lead(String key, Lane lane, Batch batch) {
+	boolean interrupted = false;
+	List<Request> requests = new ArrayList<>();
+	synchronized (lane) {
+	    long deadline = System.nanoTime() + windowNanos;
+	    long remaining = windowNanos;
+	    while (lane.queue.size() < maxBatch && remaining > 0) {
+		interrupted |= await(lane, remaining);
+		remaining = deadline - System.nanoTime();
+	    }
+	    while (requests.size() < maxBatch && !lane.queue.isEmpty()) {
+		requests.add(lane.queue.poll());
+	    }
+	}
+
+	try {
+	    int[] results = batch.book(requests);
+	    for (int i = 0; i < requests.size(); i++) {
+		requests.get(i).result = results[i];
+	    }
+	} catch (SQLException e) {
+	    for (Request request : requests) {
+		request.error = e;
+	    }
+	} catch (RuntimeException e) {
+	    SQLException error = new SQLException("Batch booking failed", e);
+	    for (Request request : requests) {
+		request.error = error;
+	    }
+	}
+
+	synchronized (lane) {
+	    for (Request request : requests) {
+		request.done = true;
+	    }
+	    if (lane.queue.isEmpty()) {
+		lane.busy = false;
+		lanes.remove(key, lane);
+	    } else {
+		lane.queue.peek().leading = true;
+	    }
+	    lane.notifyAll();
+	}
+	return interrupted;
+    }
+
+    /**
+     * Return the key of the lane of the given itinerary's flights.
+     */
+    private static String key(Query.Itinerary itinerary) {
+	StringBuilder sb = new StringBuilder();
+	for (Query.Flight flight : itinerary.flights) {
+	    sb.append(flight.fid).append(',');
+	}
+	return sb.toString();
+    }
+
+    /**
+     * Wait on the given lane's monitor, which the caller holds, for up to the given
+     * number of nanoseconds, or until notified if it is 0. Return true if the wait was
+     * interrupted.
+     */
+    private static boolean await(Lane lane, long nanos) {
+	try {
+	    if (nanos > 0) {
+		TimeUnit.NANOSECONDS.timedWait(lane, nanos);
+	    } else {
+		lane.wait();
+	    }
+	    return false;
+	} catch (InterruptedException e) {
+	    return true;
+	}
+    }
+
+    /**
+     * A booking waiting for its batch.
+     */
+    static class Request {
+	final String username;
+	final Query.Itinerary itinerary;
+
+	// Guarded by the lane's lock.
+	boolean leading;
+	boolean done;
+
+	// Set before done.
+	int result;
+	SQLException error;
+
+	Request(String username, Query.Itinerary itinerary) {
+	    this.username = username;
+	    this.itinerary = itinerary;
+	}
+    }
+
+    /**
+     * The bookings of one itinerary's flights. Guarded by its own lock.
+     */
+    static class Lane {
+	final Queue<Request> queue = new ArrayDeque<>();
+
+	// Let busy be true while a booking leads the lane.
+	boolean busy;
+    }
+}
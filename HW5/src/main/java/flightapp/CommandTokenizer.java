@@ -0,0 +1,218 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Splits Flights commands into tokens without allocating.
+ *
+ * A token is either the text between a pair of double quotes or a run of
+ * non-whitespace characters, exactly as the {@code "([^"]*)"|(\S+)} pattern
+ * FlightService used to match. The command is copied into a buffer the tokenizer
+ * reuses and tokens are kept as offsets into it; Strings are only created for the
+ * tokens a command passes on as Strings. A tokenizer belongs to one thread.
+ */
+class CommandTokenizer {
+  private char[] chars = new char[256];
+  private int length;
+
+  // Let tokens i span chars[starts[i]] up to chars[ends[i]].
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int count;
+
+  // Let input hold what readCommand() read ahead of the current command.
+  private char[] input;
+  private int inputPos;
+  private int inputLength;
+  private boolean skipNewline;
+
+  // A view of the buffer for Integer.parseInt.
+  private final CharSequence view = new CharSequence() {
+    @Override
+    public int length() {
+      return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+      return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+      return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+      return new String(chars, 0, length);
+    }
+  };
+
+  /**
+   * Tokenize the given command, replacing the previous one.
+   */
+  CommandTokenizer tokenize(String command) {
+    ensureCapacity(command.length());
+    command.getChars(0, command.length(), chars, 0);
+    length = command.length();
+    split();
+    return this;
+  }
+
+  /**
+   * Read the next line of the given reader and tokenize it, replacing the previous
+   * command. Lines end like they do for BufferedReader.readLine(). Return false,
+   * tokenizing nothing, at the end of the input.
+   */
+  boolean readCommand(Reader in) throws IOException {
+    if (input == null) {
+      input = new char[8192];
+    }
+
+    length = 0;
+    boolean read = false;
+    while (true) {
+      if (inputPos == inputLength) {
+        inputLength = in.read(input, 0, input.length);
+        inputPos = 0;
+        if (inputLength <= 0) {
+          inputLength = 0;
+          if (!read) {
+            return false;
+          }
+          break;
+        }
+      }
+
+      // A \r ending the last line may be followed by its \n.
+      if (skipNewline) {
+        skipNewline = false;
+        if (input[inputPos] == '\n') {
+          inputPos++;
+          continue;
+        }
+      }
+      read = true;
+
+      int start = inputPos;
+      while (inputPos < inputLength && input[inputPos] != '\n' && input[inputPos] != '\r') {
+        inputPos++;
+      }
+      ensureCapacity(length + inputPos - start);
+      System.arraycopy(input, start, chars, length, inputPos - start);
+      length += inputPos - start;
+
+      if (inputPos < inputLength) {
+        skipNewline = input[inputPos++] == '\r';
+        break;
+      }
+    }
+    split();
+    return true;
+  }
+
+  /**
+   * Return the number of tokens.
+   */
+  int count() {
+    return count;
+  }
+
+  /**
+   * Return the given token.
+   */
+  String token(int i) {
+    return new String(chars, starts[i], ends[i] - starts[i]);
+  }
+
+  /**
+   * Return true if the given token is the given string.
+   */
+  boolean tokenEquals(int i, String s) {
+    int n = ends[i] - starts[i];
+    if (n != s.length()) {
+      return false;
+    }
+    for (int j = 0; j < n; j++) {
+      if (chars[starts[i] + j] != s.charAt(j)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Return the given token parsed like Integer.parseInt() does.
+   *
+   * @throws NumberFormatException if it isn't an int
+   */
+  int parseInt(int i) {
+    return Integer.parseInt(view, starts[i], ends[i], 10);
+  }
+
+  /**
+   * Split the buffer into tokens, ignoring the characters String.trim() would.
+   */
+  private void split() {
+    int end = length;
+    while (end > 0 && chars[end - 1] <= ' ') {
+      end--;
+    }
+    int i = 0;
+    while (i < end && chars[i] <= ' ') {
+      i++;
+    }
+
+    count = 0;
+    while (i < end) {
+      if (isWhitespace(chars[i])) {
+        i++;
+        continue;
+      }
+
+      // A quote only starts a quoted token if it is closed.
+      if (chars[i] == '"') {
+        int close = i + 1;
+        while (close < end && chars[close] != '"') {
+          close++;
+        }
+        if (close < end) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+
+      int start = i;
+      while (i < end && !isWhitespace(chars[i])) {
+        i++;
+      }
+      add(start, i);
+    }
+  }
+
+  private void add(int start, int end) {
+    if (count == starts.length) {
+      starts = Arrays.copyOf(starts, count * 2);
+      ends = Arrays.copyOf(ends, count * 2);
+    }
+    starts[count] = start;
+    ends[count] = end;
+    count++;
+  }
+
+  /**
+   * Return true if the given character is matched by the \s of a regular expression.
+   */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > chars.length) {
+      chars = Arrays.copyOf(chars, Math.max(capacity, chars.length * 2));
+    }
+  }
+}
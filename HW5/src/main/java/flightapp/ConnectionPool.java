@@ -0,0 +1,298 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A bounded pool of database connections shared by many Query sessions.
+ *
+ * Connections are handed out most recently used first, validated when they have
+ * been idle for a while and closed once they have been idle for longer than the
+ * idle timeout. Each pooled connection keeps its own prepared statements, so a
+ * statement is only prepared once per physical connection.
+ */
+public class ConnectionPool implements AutoCloseable {
+    /**
+     * Opens a new physical connection.
+     */
+    public interface ConnectionFactory {
+	Connection open() throws SQLException;
+    }
+
+    // Let factory open the physical connections of this pool.
+    private final ConnectionFactory factory;
+
+    // Pool parameters
+    private final int maxSize;
+    private final int minIdle;
+    private final long borrowTimeoutMillis;
+    private final long validationIntervalMillis;
+    private final long idleTimeoutMillis;
+
+    // Let permits bound the number of connections that are open at once.
+    private final Semaphore permits;
+
+    // Let idle hold the connections not in use, most recently used first.
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+
+    private volatile boolean closed;
+
+    /**
+     * Class constructor.
+     *
+     * @param factory                  opens new physical connections
+     * @param maxSize                  most connections open at once
+     * @param minIdle                  idle connections kept open regardless of the idle timeout
+     * @param borrowTimeoutMillis      how long to wait for a free connection
+     * @param validationIntervalMillis idle time after which a connection is validated before use
+     * @param idleTimeoutMillis        idle time after which a connection is closed
+     */
+    public ConnectionPool(ConnectionFactory factory, int maxSize, int minIdle, long borrowTimeoutMillis,
+	    long validationIntervalMillis, long idleTimeoutMillis) {
+	if (maxSize <= 0) {
+	    throw new IllegalArgumentException("maxSize must be positive");
+	}
+	this.factory = factory;
+	this.maxSize = maxSize;
+	this.minIdle = minIdle;
+	this.borrowTimeoutMillis = borrowTimeoutMillis;
+	this.validationIntervalMillis = validationIntervalMillis;
+	this.idleTimeoutMillis = idleTimeoutMillis;
+	this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Return a pool of the given size with the remaining parameters taken from the
+     * flightapp.pool_* system properties.
+     */
+    public static ConnectionPool create(ConnectionFactory factory, int maxSize) {
+	return new ConnectionPool(factory, maxSize,
+		Integer.getInteger("flightapp.pool_min_idle", 1),
+		Long.getLong("flightapp.pool_borrow_timeout_ms", 30000L),
+		Long.getLong("flightapp.pool_validation_interval_ms", 5000L),
+		Long.getLong("flightapp.pool_idle_timeout_ms", 300000L));
+    }
+
+    /**
+     * Return a pool of connections opened from the dbconn.properties file, sized by the
+     * flightapp.pool_size property of that file.
+     */
+    public static ConnectionPool fromDbConn() throws IOException {
+	return fromDbConn(0);
+    }
+
+    /**
+     * Return a pool of the given size of connections opened from the dbconn.properties
+     * file, or sized by its flightapp.pool_size property if the given size is 0.
+     */
+    public static ConnectionPool fromDbConn(int size) throws IOException {
+	Properties configProps = readDbConn();
+	String serverURL = configProps.getProperty("flightapp.server_url");
+	String dbName = configProps.getProperty("flightapp.database_name");
+	String adminName = configProps.getProperty("flightapp.username");
+	String password = configProps.getProperty("flightapp.password");
+	int maxSize = size > 0 ? size : Integer.parseInt(configProps.getProperty("flightapp.pool_size", "20"));
+	return create(() -> Query.openConnectionFromCredential(serverURL, dbName, adminName, password), maxSize);
+    }
+
+    /**
+     * Return the properties of the dbconn.properties file.
+     */
+    static Properties readDbConn() throws IOException {
+	Properties configProps = new Properties();
+	try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+	    configProps.load(in);
+	}
+	return configProps;
+    }
+
+    /**
+     * Return a connection, waiting for one to be released if the pool is exhausted.
+     *
+     * @throws SQLException if no connection could be opened or none was released in time
+     */
+    public PooledConnection borrow() throws SQLException {
+	if (closed) {
+	    throw new SQLException("Connection pool is closed");
+	}
+
+	try {
+	    if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+		throw new SQLTransientConnectionException(
+			"Timed out waiting for one of " + maxSize + " pooled connections");
+	    }
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new SQLException("Interrupted waiting for a pooled connection", e);
+	}
+
+	try {
+	    while (true) {
+		PooledConnection pooled;
+		synchronized (idle) {
+		    pooled = idle.pollFirst();
+		}
+
+		if (pooled == null) {
+		    return new PooledConnection(factory.open());
+		}
+
+		// Validate connections that have been idle long enough to have been dropped.
+		long idleFor = System.currentTimeMillis() - pooled.lastUsed;
+		if (idleFor < validationIntervalMillis || pooled.isValid()) {
+		    return pooled;
+		}
+		pooled.closeQuietly();
+	    }
+	} catch (SQLException | RuntimeException e) {
+	    permits.release();
+	    throw e;
+	}
+    }
+
+    /**
+     * Return the given connection to the pool. Connections left in a transaction are
+     * rolled back, and connections that cannot be reset are closed.
+     */
+    public void release(PooledConnection pooled) {
+	try {
+	    Connection conn = pooled.getConnection();
+	    if (!conn.getAutoCommit()) {
+		conn.rollback();
+		conn.setAutoCommit(true);
+	    }
+	    pooled.lastUsed = System.currentTimeMillis();
+
+	    if (closed) {
+		pooled.closeQuietly();
+	    } else {
+		synchronized (idle) {
+		    idle.addFirst(pooled);
+		}
+	    }
+	} catch (SQLException e) {
+	    pooled.closeQuietly();
+	} finally {
+	    permits.release();
+	}
+	evictIdle();
+    }
+
+    /**
+     * Close the least recently used connections that have been idle for longer than the
+     * idle timeout, keeping at least the minimum number of idle connections.
+     */
+    public void evictIdle() {
+	long now = System.currentTimeMillis();
+	List<PooledConnection> evicted = new ArrayList<>();
+	synchronized (idle) {
+	    while (idle.size() > minIdle && now - idle.peekLast().lastUsed > idleTimeoutMillis) {
+		evicted.add(idle.pollLast());
+	    }
+	}
+	for (PooledConnection pooled : evicted) {
+	    pooled.closeQuietly();
+	}
+    }
+
+    /**
+     * Return the number of connections currently lent out.
+     */
+    public int active() {
+	return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * Return the number of open connections waiting in the pool.
+     */
+    public int idle() {
+	synchronized (idle) {
+	    return idle.size();
+	}
+    }
+
+    public int maxSize() {
+	return maxSize;
+    }
+
+    /**
+     * Close every idle connection. Connections still lent out are closed when released.
+     */
+    @Override
+    public void close() {
+	closed = true;
+	List<PooledConnection> remaining;
+	synchronized (idle) {
+	    remaining = new ArrayList<>(idle);
+	    idle.clear();
+	}
+	for (PooledConnection pooled : remaining) {
+	    pooled.closeQuietly();
+	}
+    }
+
+    /**
+     * A physical connection along with the statements prepared on it.
+     */
+    public static class PooledConnection {
+	private final Connection conn;
+	private final Map<String, PreparedStatement> statements = new HashMap<>();
+	private long lastUsed;
+
+	// Let isolation be the connection's isolation level, or -1 until it is first set.
+	private int isolation = -1;
+
+	/**
+	 * Class constructor.
+	 */
+	PooledConnection(Connection conn) {
+	    this.conn = conn;
+	    this.lastUsed = System.currentTimeMillis();
+	}
+
+	public Connection getConnection() {
+	    return conn;
+	}
+
+	/**
+	 * Return the statement for the given SQL, preparing it the first time it's asked for.
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+	    PreparedStatement statement = statements.get(sql);
+	    if (statement == null) {
+		statement = conn.prepareStatement(sql);
+		statements.put(sql, statement);
+	    }
+	    return statement;
+	}
+
+	/**
+	 * Set the connection's transaction isolation level, skipping the round trip to the
+	 * database if it is already at that level.
+	 */
+	public void setTransactionIsolation(int level) throws SQLException {
+	    if (level != isolation) {
+		conn.setTransactionIsolation(level);
+		isolation = level;
+	    }
+	}
+
+	private boolean isValid() {
+	    try {
+		return conn.isValid(5);
+	    } catch (SQLException e) {
+		return false;
+	    }
+	}
+
+	private void closeQuietly() {
+	    try {
+		conn.close();
+	    } catch (SQLException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+}
@@ -0,0 +1,106 @@
+package flightapp;
+
+import java.util.concurrent.locks.*;
+
+/**
+ * A process-wide cache of flights by fid, shared by every session.
+ *
+ * Flights never change, so cached flights are never invalidated. Entries live in
+ * an open-addressing hash table with linear probing over a plain int[] of keys,
+ * so lookups neither box fids nor allocate.
+ */
+public class FlightCache {
+    // Let the table grow once it is more than half full.
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Let keys and values form the hash table; an empty slot has a null value.
+    private int[] keys = new int[INITIAL_CAPACITY];
+    private Query.Flight[] values = new Query.Flight[INITIAL_CAPACITY];
+    private int size;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Return the cached flight with the given fid, or null if it isn't cached.
+     */
+    public Query.Flight get(int fid) {
+	lock.readLock().lock();
+	try {
+	    int mask = keys.length - 1;
+	    for (int slot = hash(fid) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+		if (keys[slot] == fid) {
+		    return values[slot];
+		}
+	    }
+	    return null;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Cache the given flight.
+     */
+    public void put(Query.Flight flight) {
+	lock.writeLock().lock();
+	try {
+	    if (2 * (size + 1) > keys.length) {
+		resize(keys.length * 2);
+	    }
+	    insert(flight);
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Return the number of cached flights.
+     */
+    public int size() {
+	lock.readLock().lock();
+	try {
+	    return size;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Insert or replace the given flight. The caller must hold the write lock.
+     */
+    private void insert(Query.Flight flight) {
+	int mask = keys.length - 1;
+	int slot = hash(flight.fid) & mask;
+	while (values[slot] != null && keys[slot] != flight.fid) {
+	    slot = (slot + 1) & mask;
+	}
+	if (values[slot] == null) {
+	    size++;
+	}
+	keys[slot] = flight.fid;
+	values[slot] = flight;
+    }
+
+    /**
+     * Rehash every flight into a table of the given capacity, a power of two.
+     */
+    private void resize(int capacity) {
+	Query.Flight[] oldValues = values;
+	keys = new int[capacity];
+	values = new Query.Flight[capacity];
+	size = 0;
+	for (Query.Flight flight : oldValues) {
+	    if (flight != null) {
+		insert(flight);
+	    }
+	}
+    }
+
+    /**
+     * Spread consecutive fids across the table.
+     */
+    private static int hash(int fid) {
+	int h = fid * 0x9E3779B9;
+	return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,187 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Serves the Flights application to many clients over TCP.
+ *
+ * Clients send the same commands as the REPL, one per line. Each response is
+ * followed by an empty line so clients know where it ends. Every client
+ * connection gets its own Query session; sessions share one storage and run on
+ * their own (virtual, when available) thread.
+ */
+public class FlightServer implements AutoCloseable {
+  /**
+   * Sent to clients that connect while the server is full.
+   */
+  static final String BUSY = "Error: Server is at its connection limit, try again later\n";
+
+  private final Storage storage;
+  private final ServerSocket serverSocket;
+  private final ExecutorService sessions;
+  private final Semaphore slots;
+  private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+  private volatile boolean running = true;
+
+  /**
+   * Class constructor.
+   *
+   * @param storage        storage shared by the client sessions, closed with the server
+   * @param port           TCP port to listen on, or 0 for any free port
+   * @param maxConnections most clients served at once
+   */
+  public FlightServer(Storage storage, int port, int maxConnections) throws IOException {
+    this.storage = storage;
+    this.serverSocket = new ServerSocket(port);
+    this.sessions = VirtualThreads.newThreadPerTaskExecutor("flightapp-session");
+    this.slots = new Semaphore(maxConnections);
+  }
+
+  /**
+   * Get the port the server listens on
+   */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accept clients until the server is closed.
+   */
+  public void serve() throws IOException {
+    while (running) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        // The server socket was closed by close().
+        if (!running) {
+          return;
+        }
+        throw e;
+      }
+
+      if (!slots.tryAcquire()) {
+        reject(socket);
+        continue;
+      }
+
+      clients.add(socket);
+      try {
+        sessions.execute(() -> {
+          try {
+            handle(socket);
+          } finally {
+            clients.remove(socket);
+            slots.release();
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        clients.remove(socket);
+        slots.release();
+        reject(socket);
+      }
+    }
+  }
+
+  /**
+   * Run a client's commands on a session of its own until it quits or disconnects.
+   */
+  private void handle(Socket socket) {
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+         Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+      Query q = new Query(storage);
+
+      String command;
+      while (running && (command = in.readLine()) != null) {
+        String response = respond(q, command);
+        out.write(response);
+        if (!response.endsWith("\n")) {
+          out.write('\n');
+        }
+        out.write('\n');
+        out.flush();
+
+        if (response.equals("Goodbye\n")) {
+          break;
+        }
+      }
+    } catch (IOException | SQLException e) {
+      // The client went away, or no connection was available for its session.
+      if (running) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Execute a command, keeping the session alive if the command fails unexpectedly.
+   */
+  private static String respond(Query q, String command) {
+    try {
+      return FlightService.execute(q, command);
+    } catch (NumberFormatException e) {
+      return "Failed to parse integer\n";
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+      return "Error: " + e.getMessage() + "\n";
+    }
+  }
+
+  private static void reject(Socket socket) {
+    try (Socket s = socket) {
+      s.getOutputStream().write(BUSY.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      // Nothing more to tell the client.
+    }
+  }
+
+  /**
+   * Stop accepting clients, wait up to the given time for connected clients to finish
+   * their current command, then disconnect any that remain.
+   */
+  public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+    running = false;
+    try {
+      serverSocket.close();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    // Clients see end of input once their current command has been answered.
+    for (Socket socket : clients) {
+      try {
+        socket.shutdownInput();
+      } catch (IOException e) {
+        // Already closed.
+      }
+    }
+
+    sessions.shutdown();
+    if (!sessions.awaitTermination(timeout, unit)) {
+      for (Socket socket : clients) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // Already closed.
+        }
+      }
+      sessions.shutdownNow();
+    }
+    storage.close();
+  }
+
+  @Override
+  public void close() {
+    try {
+      shutdown(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -1,125 +1,214 @@
 package flightapp;
 
 import java.io.*;
-import java.util.*;
-import java.util.regex.*;
+import java.nio.charset.StandardCharsets;
 import java.sql.*;
 
 public class FlightService {
 
+  // Let the commands be numbered by their position in COMMANDS.
+  private static final String[] COMMANDS = { "login", "create", "search", "book", "reservations", "pay", "cancel",
+      "quit" };
+  private static final int LOGIN = 0;
+  private static final int CREATE = 1;
+  private static final int SEARCH = 2;
+  private static final int BOOK = 3;
+  private static final int RESERVATIONS = 4;
+  private static final int PAY = 5;
+  private static final int CANCEL = 6;
+  private static final int QUIT = 7;
+  private static final int UNKNOWN = -1;
+
+  // Let each thread that executes commands reuse one tokenizer.
+  private static final ThreadLocal<CommandTokenizer> tokenizers = ThreadLocal.withInitial(CommandTokenizer::new);
+
   /**
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+    return execute(q, tokenizers.get().tokenize(command));
+  }
 
+  /**
+   * Execute the command held by the given tokenizer on the database query connection
+   */
+  static String execute(Query q, CommandTokenizer tokens) {
     // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
+    if (tokens.count() == 0) {
+      return "Please enter a command";
     }
 
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
-    }
+    String response;
+    int n = tokens.count();
+    switch (command(tokens)) {
+      case LOGIN:
+        if (n == 3) {
+          String username = tokens.token(1);
+          String password = tokens.token(2);
+          response = q.transaction_login(username, password);
+        } else {
+          response = "Error: Please provide a username and password";
+        }
+        break;
 
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
-      }
-    }
+      case CREATE:
+        if (n == 4) {
+          String username = tokens.token(1);
+          String password = tokens.token(2);
+          int initAmount = tokens.parseInt(3);
+          response = q.transaction_createCustomer(username, password, initAmount);
+        } else {
+          response = "Error: Please provide a username, password, and initial amount in the account";
+        }
+        break;
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
+      case SEARCH:
+        if (n == 6) {
+          String originCity = tokens.token(1);
+          String destinationCity = tokens.token(2);
+          boolean direct = tokens.tokenEquals(3, "1");
+          try {
+            int day = tokens.parseInt(4);
+            int count = tokens.parseInt(5);
+            response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          } catch (NumberFormatException e) {
+            response = "Failed to parse integer";
+          }
+        } else {
+          response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
         }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-      }
-    }
+        break;
 
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
-      }
-    }
+      case BOOK:
+        if (n == 2) {
+          int itinerary_id = tokens.parseInt(1);
+          response = q.transaction_book(itinerary_id);
+        } else {
+          response = "Error: Please provide an itinerary_id";
+        }
+        break;
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.transaction_reservations();
-    }
+      case RESERVATIONS:
+        response = q.transaction_reservations();
+        break;
 
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
-    }
+      case PAY:
+        if (n == 2) {
+          int reservation_id = tokens.parseInt(1);
+          response = q.transaction_pay(reservation_id);
+        } else {
+          response = "Error: Please provide a reservation_id";
+        }
+        break;
 
-    // cancel
-    else if (tokens[0].equals("cancel")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_cancel(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
-    }
+      case CANCEL:
+        if (n == 2) {
+          int reservation_id = tokens.parseInt(1);
+          response = q.transaction_cancel(reservation_id);
+        } else {
+          response = "Error: Please provide a reservation_id";
+        }
+        break;
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-      response = "Goodbye\n";
-    }
+      case QUIT:
+        response = "Goodbye\n";
+        break;
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+      // unknown command
+      default:
+        response = "Error: unrecognized command '" + tokens.token(0) + "'";
+        break;
     }
 
     return response;
   }
 
+  /**
+   * Return the number of the command named by the first token, or UNKNOWN
+   */
+  private static int command(CommandTokenizer tokens) {
+    for (int i = 0; i < COMMANDS.length; i++) {
+      if (tokens.tokenEquals(0, COMMANDS[i])) {
+        return i;
+      }
+    }
+    return UNKNOWN;
+  }
+
   /**
    * Establishes an application-to-database connection and runs the Flights
-   * application REPL
+   * application REPL, or serves it over TCP when started with
+   * {@code --server [port]}, or runs the commands of a file, or of standard input
+   * if it is - or missing, when started with {@code --batch [file]}
    * 
    * @param args
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    if (args.length > 0 && args[0].equals("--server")) {
+      int port = args.length > 1 ? Integer.parseInt(args[1]) : 3440;
+      serve(port);
+      return;
+    }
+
     /* prepare the database connection stuff */
-    Query q = new Query();
-    menu(q);
+    Storage storage = openStorage(false);
+    Query q = (storage == null) ? new Query() : new Query(storage);
+    if (args.length > 0 && args[0].equals("--batch")) {
+      boolean stdin = args.length < 2 || args[1].equals("-");
+      try (Reader in = new InputStreamReader(stdin ? System.in : new FileInputStream(args[1]), StandardCharsets.UTF_8)) {
+        batch(q, in, new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16));
+      }
+    } else {
+      menu(q);
+    }
     q.closeConnection();
+    if (storage != null) {
+      storage.close();
+    }
+  }
+
+  /**
+   * Return the storage named by the flightapp.storage system property: "jdbc", the
+   * default, keeps the data in the database of dbconn.properties, reading from the
+   * replicas it lists when serving, "memory" keeps it in this process with the
+   * flights of flightapp.flights_file, and "journal" keeps it in this process,
+   * journaled to flightapp.journal_dir and applied to the database in the
+   * background. A single session of the database needs no storage of its own, so
+   * null is returned for "jdbc" unless the storage is for the server.
+   */
+  private static Storage openStorage(boolean server) throws IOException, SQLException {
+    String storage = System.getProperty("flightapp.storage", "jdbc");
+    switch (storage) {
+      case "jdbc":
+        return server ? new JdbcStorage(ConnectionPool.fromDbConn(), ReplicaSet.fromDbConn()) : null;
+      case "memory":
+        return InMemoryStorage.fromSystemProperties();
+      case "journal":
+        return JournaledStorage.fromSystemProperties();
+      default:
+        throw new IllegalArgumentException("Unknown flightapp.storage: " + storage);
+    }
+  }
+
+  /**
+   * Serves the Flights application on the specified port until the JVM is shut
+   * down. The flightapp.server_max_connections system property bounds the number
+   * of concurrent clients.
+   *
+   * @param port
+   * @throws IOException
+   */
+  private static void serve(int port) throws IOException, SQLException {
+    int maxConnections = Integer.getInteger("flightapp.server_max_connections", 1000);
+    Storage storage = openStorage(true);
+    FlightServer server = new FlightServer(storage, port, maxConnections);
+
+    // Shut down gracefully on Ctrl-C or SIGTERM.
+    Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+
+    System.out.println("Serving Flights on port " + server.getPort());
+    server.serve();
   }
 
   /**
@@ -130,23 +219,26 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
-    while (true) {
-      // print the command options
-      System.out.println();
-      System.out.println(" *** Please enter one of the following commands *** ");
-      System.out.println("> create <username> <password> <initial amount>");
-      System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
-      System.out.println("> book <itinerary id>");
-      System.out.println("> pay <reservation id>");
-      System.out.println("> reservations");
-      System.out.println("> cancel <reservation id>");
-      System.out.println("> quit");
+    // print the command options
+    System.out.println();
+    System.out.println(" *** Please enter one of the following commands *** ");
+    System.out.println("> create <username> <password> <initial amount>");
+    System.out.println("> login <username> <password>");
+    System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> book <itinerary id>");
+    System.out.println("> pay <reservation id>");
+    System.out.println("> reservations");
+    System.out.println("> cancel <reservation id>");
+    System.out.println("> quit");
 
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
+    while (true) {
       // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
       String command = r.readLine();
+      if (command == null) {
+        break;
+      }
 
       // execute the given input command
       String response = execute(q, command);
@@ -158,18 +250,33 @@ public class FlightService {
   }
 
   /**
-   * Tokenize a string into a string array
+   * Executes every command of the given input, one per line, until its end or a
+   * quit command, writing only the responses, each ending in a newline, to the given
+   * output. Like the server, a command that fails to parse doesn't stop the rest.
+   * The output is flushed once, at the end.
+   *
+   * @param q
+   * @param in
+   * @param out
+   * @throws IOException
    */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
+  static void batch(Query q, Reader in, Writer out) throws IOException {
+    CommandTokenizer tokens = new CommandTokenizer();
+    while (tokens.readCommand(in)) {
+      String response;
+      try {
+        response = execute(q, tokens);
+      } catch (NumberFormatException e) {
+        response = "Failed to parse integer\n";
+      }
+      out.write(response);
+      if (!response.endsWith("\n")) {
+        out.write('\n');
+      }
+      if (response.equals("Goodbye\n")) {
+        break;
+      }
     }
-    return tokens.toArray(new String[0]);
+    out.flush();
   }
 }
@@ -0,0 +1,435 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps the Flights application's data in memory, without a database server.
+ *
+ * Flights are read once into a RouteIndex. Users and reservations live in
+ * concurrent maps; everything that changes a user's balance or reservations runs
+ * while holding that user's lock, and seats are booked with compare-and-set on
+ * per-flight counters, so operations of different users never wait for each
+ * other. Nothing is persisted: the data is gone when the process exits, unless a
+ * JournaledStorage listens to the changes and keeps them.
+ */
+public class InMemoryStorage implements Storage {
+    // Let usernames be no longer than the username column of the Users table.
+    private static final int MAX_USERNAME = 20;
+
+    // Let flights hold every flight that isn't canceled.
+    private final RouteIndex flights;
+
+    // Let users map lower case usernames to users.
+    private final Map<String, User> users = new ConcurrentHashMap<>();
+
+    // Let reservations map reservation IDs to reservations.
+    private final Map<Integer, Reservation> reservations = new ConcurrentHashMap<>();
+
+    // Let bookedSeats map fids to the number of seats booked on the flight.
+    private final Map<Integer, AtomicInteger> bookedSeats = new ConcurrentHashMap<>();
+
+    // Let lastReservationId be the ID of the most recent successful reservation.
+    private final AtomicInteger lastReservationId = new AtomicInteger();
+
+    // Let listener be told of every change before it is made, if set.
+    private volatile Listener listener;
+
+    /**
+     * Told of every change to users and reservations before the change is made, while
+     * the lock of the user it changes is held, so the changes of one user reach the
+     * listener in the order they are made. If the listener throws, the change is not
+     * made and the exception is thrown to the caller.
+     */
+    interface Listener {
+	void cleared();
+
+	void userCreated(String username, byte[] salt, byte[] hash, int balance);
+
+	void booked(int reservationId, String username, Query.Itinerary itinerary);
+
+	/**
+	 * The reservation is being paid, leaving the user with the given balance.
+	 */
+	void paid(int reservationId, String username, int balance);
+
+	/**
+	 * The reservation is being canceled, leaving the user with the given balance.
+	 */
+	void canceled(int reservationId, String username, int balance);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param flights the flights that can be searched and booked
+     */
+    public InMemoryStorage(RouteIndex flights) {
+	this.flights = flights;
+    }
+
+    /**
+     * Return a storage of the flights in the CSV file named by the flightapp.flights_file
+     * system property, flight-dataset/flights-small.csv by default.
+     */
+    public static InMemoryStorage fromSystemProperties() throws IOException {
+	String file = System.getProperty("flightapp.flights_file", "flight-dataset/flights-small.csv");
+	try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+	    return new InMemoryStorage(loadFlights(reader));
+	}
+    }
+
+    /**
+     * Return the flights in the given CSV, which has the columns of the Flights table in
+     * order and no header, indexed for searches. Canceled flights are left out.
+     */
+    public static RouteIndex loadFlights(Reader csv) throws IOException {
+	RouteIndex.Builder builder = new RouteIndex.Builder();
+	BufferedReader reader = new BufferedReader(csv);
+	String line;
+	while ((line = reader.readLine()) != null) {
+	    if (line.isEmpty()) {
+		continue;
+	    }
+	    String[] columns = line.split(",", -1);
+	    if (columns.length < 18) {
+		throw new IOException("Expected the 18 columns of the Flights table: " + line);
+	    }
+	    if (parseInt(columns[13]) == 1) {
+		continue;
+	    }
+	    builder.add(parseInt(columns[0]), parseInt(columns[2]), columns[4], parseInt(columns[5]), columns[6],
+		    columns[8], parseInt(columns[14]), parseInt(columns[16]), parseInt(columns[17]));
+	}
+	return builder.build();
+    }
+
+    /**
+     * Return the given CSV column as an int, reading an empty column as 0 like the
+     * import into the database does.
+     */
+    private static int parseInt(String column) {
+	return column.isEmpty() ? 0 : Integer.parseInt(column.trim());
+    }
+
+    /**
+     * Set the listener of changes. Must be called before any session is opened.
+     */
+    void setListener(Listener listener) {
+	this.listener = listener;
+    }
+
+    /**
+     * Return the flight with the given fid, or null if there is no such flight that
+     * isn't canceled.
+     */
+    Query.Flight getFlight(int fid) {
+	return flights.getFlight(fid);
+    }
+
+    /**
+     * Add a user that already exists elsewhere, such as in a database the storage is
+     * restored from. Must be called before any session is opened, as must the other
+     * restore methods.
+     */
+    void restoreUser(String username, byte[] salt, byte[] hash, int balance) {
+	users.put(key(username), new User(new Credentials(salt, hash), balance));
+    }
+
+    /**
+     * Add an existing reservation of an existing user, in ID order. Its seats are not
+     * booked again; restore them with restoreBookedSeats().
+     */
+    void restoreReservation(int id, String username, Query.Flight[] flights, int price, boolean paid,
+	    boolean canceled) {
+	User user = users.get(key(username));
+	Reservation reservation = new Reservation(id, user, flights, price);
+	reservation.paid = paid;
+	reservation.canceled = canceled;
+	reservations.put(id, reservation);
+	user.reservations.add(reservation);
+    }
+
+    void restoreBookedSeats(int fid, int seats) {
+	bookedSeats.put(fid, new AtomicInteger(seats));
+    }
+
+    void restoreLastReservationId(int id) {
+	lastReservationId.set(id);
+    }
+
+    @Override
+    public Session openSession() {
+	return new MemorySession();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Return the key of the given username in the users map.
+     */
+    private static String key(String username) {
+	return username.toLowerCase();
+    }
+
+    /**
+     * Book a seat on the given flight if it has one left, returning true if it did.
+     */
+    private boolean reserveSeat(Query.Flight flight) {
+	AtomicInteger seats = bookedSeats.computeIfAbsent(flight.fid, fid -> new AtomicInteger());
+	while (true) {
+	    int booked = seats.get();
+	    if (booked >= flight.capacity) {
+		return false;
+	    }
+	    if (seats.compareAndSet(booked, booked + 1)) {
+		return true;
+	    }
+	}
+    }
+
+    /**
+     * Give back a seat booked by reserveSeat().
+     */
+    private void releaseSeat(Query.Flight flight) {
+	bookedSeats.get(flight.fid).decrementAndGet();
+    }
+
+    /**
+     * A session of the storage. Sessions hold no state of their own, so they never retry
+     * and never deadlock.
+     */
+    private class MemorySession implements Storage.Session {
+	@Override
+	public void clear() {
+	    if (listener != null) {
+		listener.cleared();
+	    }
+	    users.clear();
+	    reservations.clear();
+	    bookedSeats.clear();
+	    lastReservationId.set(0);
+	}
+
+	@Override
+	public Credentials getCredentials(String username) {
+	    User user = users.get(key(username));
+	    return user == null ? null : user.credentials;
+	}
+
+	@Override
+	public boolean createUser(String username, byte[] salt, byte[] hash, int balance) {
+	    // The database refuses longer usernames, so neither it nor a journal applied
+	    // to it may end up with one.
+	    if (username.length() > MAX_USERNAME) {
+		return false;
+	    }
+
+	    User user = new User(new Credentials(salt, hash), balance);
+	    if (listener == null) {
+		return users.putIfAbsent(key(username), user) == null;
+	    }
+
+	    // Hold the new user's lock so that nothing the user does reaches the listener
+	    // before the user does.
+	    synchronized (user) {
+		if (users.putIfAbsent(key(username), user) != null) {
+		    return false;
+		}
+		try {
+		    listener.userCreated(username, salt, hash, balance);
+		} catch (RuntimeException e) {
+		    users.remove(key(username), user);
+		    throw e;
+		}
+		return true;
+	    }
+	}
+
+	@Override
+	public void search(String origin, String destination, boolean directOnly, int day, int count,
+		List<Query.Itinerary> directs, List<Query.Itinerary> indirects) {
+	    flights.getDirectFlights(directs, count, origin, destination, day);
+	    if (count - directs.size() > 0 && !directOnly) {
+		flights.getIndirectFlights(indirects, count - directs.size(), origin, destination, day);
+	    }
+	}
+
+	@Override
+	public int book(String username, Query.Itinerary itinerary) throws SQLException {
+	    User user = getUser(username);
+	    synchronized (user) {
+		// Like the database, count the user's reservations on the day whether canceled or not.
+		int sameDay = 0;
+		for (Reservation reservation : user.reservations) {
+		    if (reservation.flight1.dayOfMonth == itinerary.flight1.dayOfMonth) {
+			sameDay++;
+		    }
+		}
+		if (sameDay == 1) {
+		    return SAME_DAY;
+		}
+
+		for (int i = 0; i < itinerary.flights.length; i++) {
+		    if (!reserveSeat(itinerary.flights[i])) {
+			for (int j = 0; j < i; j++) {
+			    releaseSeat(itinerary.flights[j]);
+			}
+			return FULL;
+		    }
+		}
+
+		// The booking can no longer fail but for the listener, so its ID is never given back.
+		Reservation reservation = new Reservation(lastReservationId.incrementAndGet(), user, itinerary.flights,
+			itinerary.price);
+		if (listener != null) {
+		    try {
+			listener.booked(reservation.id, username, itinerary);
+		    } catch (RuntimeException e) {
+			for (Query.Flight flight : itinerary.flights) {
+			    releaseSeat(flight);
+			}
+			throw e;
+		    }
+		}
+		reservations.put(reservation.id, reservation);
+		user.reservations.add(reservation);
+		return reservation.id;
+	    }
+	}
+
+	@Override
+	public Payment pay(String username, int reservationId) {
+	    User user = users.get(key(username));
+	    if (user == null) {
+		return Payment.NOT_FOUND;
+	    }
+
+	    synchronized (user) {
+		Reservation reservation = reservations.get(reservationId);
+		if (reservation == null || reservation.user != user || reservation.paid || reservation.canceled) {
+		    return Payment.NOT_FOUND;
+		}
+		if (user.balance < reservation.price) {
+		    return Payment.insufficientFunds(user.balance, reservation.price);
+		}
+
+		if (listener != null) {
+		    listener.paid(reservationId, username, user.balance - reservation.price);
+		}
+		user.balance -= reservation.price;
+		reservation.paid = true;
+		return Payment.paid(user.balance, reservation.price);
+	    }
+	}
+
+	@Override
+	public List<Query.Itinerary> getReservations(String username) {
+	    List<Query.Itinerary> itineraries = new ArrayList<>();
+	    User user = users.get(key(username));
+	    if (user == null) {
+		return itineraries;
+	    }
+
+	    synchronized (user) {
+		for (Reservation reservation : user.reservations) {
+		    if (!reservation.canceled) {
+			itineraries.add(new Query.Itinerary(reservation.flights, reservation.flight1.time));
+		    }
+		}
+	    }
+	    return itineraries;
+	}
+
+	@Override
+	public boolean cancel(String username, int reservationId) {
+	    User user = users.get(key(username));
+	    if (user == null) {
+		return false;
+	    }
+
+	    synchronized (user) {
+		Reservation reservation = reservations.get(reservationId);
+		if (reservation == null || reservation.user != user || reservation.canceled) {
+		    return false;
+		}
+
+		// Like the database, refund the price whether or not it was paid.
+		if (listener != null) {
+		    listener.canceled(reservationId, username, user.balance + reservation.price);
+		}
+		user.balance += reservation.price;
+		reservation.canceled = true;
+		return true;
+	    }
+	}
+
+	@Override
+	public int retries() {
+	    return 0;
+	}
+
+	@Override
+	public int deadlocks() {
+	    return 0;
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * Return the user with the given username, which must exist.
+	 */
+	private User getUser(String username) throws SQLException {
+	    User user = users.get(key(username));
+	    if (user == null) {
+		throw new SQLException("No such user: " + username);
+	    }
+	    return user;
+	}
+    }
+
+    /**
+     * A user. The balance and reservations are guarded by the user's lock.
+     */
+    private static class User {
+	final Credentials credentials;
+	int balance;
+
+	// Let reservations hold the user's reservations in ID order.
+	final List<Reservation> reservations = new ArrayList<>();
+
+	User(Credentials credentials, int balance) {
+	    this.credentials = credentials;
+	    this.balance = balance;
+	}
+    }
+
+    /**
+     * A reservation. Whether it is paid or canceled is guarded by its user's lock.
+     */
+    private static class Reservation {
+	final int id;
+	final User user;
+	final Query.Flight flight1;
+	final Query.Flight[] flights;
+	final int price;
+	boolean paid;
+	boolean canceled;
+
+	Reservation(int id, User user, Query.Flight[] flights, int price) {
+	    this.id = id;
+	    this.user = user;
+	    this.flight1 = flights[0];
+	    this.flights = flights.clone();
+	    this.price = price;
+	}
+    }
+}
@@ -0,0 +1,1748 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Keeps the Flights application's data in the SQL Server database.
+ *
+ * Sessions either borrow a connection from the shared pool for each operation and
+ * return it afterwards, or, if the storage is dedicated, keep one connection from
+ * borrowing it at open until they close. Writes run at serializable isolation and
+ * are retried after deadlocks according to each transaction's retry policy. Given
+ * read replicas, sessions that borrow per operation run searches, flight lookups
+ * and reservation listings on a replica, except that a session reads its own
+ * reservations from the primary while its last write may not have reached the
+ * replicas.
+ */
+public class JdbcStorage implements Storage {
+    // Let pool lend out the database connections used by the sessions.
+    private final ConnectionPool pool;
+
+    // Let dedicated be true if each session keeps its own connection.
+    private final boolean dedicated;
+
+    // Let replicas run the read-only transactions of sessions that aren't dedicated, or
+    // be null if everything runs on the primary.
+    private final ReplicaSet replicas;
+
+    // Let bookingPipeline group concurrent bookings of the same flights into one
+    // transaction, or be null if every booking runs its own. Set
+    // -Dflightapp.booking_pipeline=true, and see BookingPipeline for its settings.
+    private final BookingPipeline bookingPipeline =
+	Boolean.getBoolean("flightapp.booking_pipeline") ? BookingPipeline.fromSystemProperties() : null;
+
+    // Let routeIndex be the shared in-memory index of the Flights table, or null if searches use SQL.
+    private static volatile RouteIndex routeIndex;
+    private static boolean routeIndexLoaded;
+
+    // Let oneHopLimit be the number of one-hop itineraries per route and day in the
+    // OneHops table, or 0 if searches without the route index join Flights instead.
+    private static volatile int oneHopLimit;
+
+    // Let flightCache hold the flights of every session's reservations.
+    private static final FlightCache flightCache = new FlightCache();
+
+    // Largest number of fids looked up by one bulk flight query.
+    private static final int MAX_BULK_FLIGHTS = 512;
+
+    // Let pay and cancel read without holding locks and write only if the rows they read
+    // haven't changed since, retrying when they have. Set -Dflightapp.optimistic=true.
+    private static final boolean OPTIMISTIC = Boolean.getBoolean("flightapp.optimistic");
+
+    // Let read-only transactions (login, search and reservations) run at this isolation
+    // level rather than serializable, so that they don't block or deadlock with bookings.
+    // Set -Dflightapp.read_isolation=serializable (the default), read_committed or
+    // snapshot. Snapshot needs ALLOW_SNAPSHOT_ISOLATION on the database; read_committed
+    // only stops blocking writers with READ_COMMITTED_SNAPSHOT on, and then each statement,
+    // rather than the whole transaction, sees a consistent snapshot. A call still reads
+    // consistent data at read_committed only because every read of data that changes
+    // is a single statement: login reads one user and reservations come with their legs
+    // in one query, while searches and flight lookups read only Flights, which never
+    // changes. A read that needs several statements to agree must not run at read_committed.
+    private static final int READ_ISOLATION = readIsolation(System.getProperty("flightapp.read_isolation", "serializable"));
+
+    // SQL Server's snapshot isolation level, ISQLServerConnection.TRANSACTION_SNAPSHOT
+    static final int TRANSACTION_SNAPSHOT = 4096;
+
+    // Let the transactions that retry after database errors share a policy per transaction.
+    private static final RetryPolicy createRetry = Metrics.retryPolicy("create");
+    private static final RetryPolicy bookRetry = Metrics.retryPolicy("book");
+    private static final RetryPolicy payRetry = Metrics.retryPolicy("pay");
+    private static final RetryPolicy reservationsRetry = Metrics.retryPolicy("reservations");
+    private static final RetryPolicy cancelRetry = Metrics.retryPolicy("cancel");
+
+    // Let the following section contain predefined SQL queries.
+
+    // For check dangling. Sessions track their own transactions, and also ask the server
+    // for @@TRANCOUNT after one in every TRANCOUNT_SAMPLE attempts to catch transactions
+    // opened behind their back. Set -Dflightapp.trancount_sample=1 to ask after every
+    // attempt while debugging, or 0 to never ask. -Dflightapp.check_dangling=false also
+    // stops asking, on databases without @@TRANCOUNT such as the embedded benchmark database.
+    private static final boolean CHECK_DANGLING =
+	Boolean.parseBoolean(System.getProperty("flightapp.check_dangling", "true"));
+    private static final int TRANCOUNT_SAMPLE = CHECK_DANGLING ? Integer.getInteger("flightapp.trancount_sample", 100) : 0;
+    private static final String TRANCOUNT_SQL = ""
+	+ "SELECT @@TRANCOUNT AS tran_count";
+
+    // Used to clear the Users table.
+    private static final String CLEAR_USERS = ""
+	+ "DELETE FROM Users;";
+
+    // Used to clear the Reservations table.
+    private static final String CLEAR_RESERVATIONS = ""
+	+ "DELETE FROM Reservations;";
+
+    // Used to clear the ReservationLegs table.
+    private static final String CLEAR_RESERVATION_LEGS = ""
+	+ "DELETE FROM ReservationLegs;";
+
+    // Used to clear the BookedSeats table.
+    private static final String CLEAR_BOOKED_SEATS = ""
+	+ "DELETE FROM BookedSeats;";
+
+    // Used to check if username already exists
+    private static final String CHECK_USERNAME_EXISTS = ""
+	+ "SELECT COUNT(*) as count"
+	+ "  FROM Users"
+	+ " WHERE username = ?;";
+
+    // Used to add a new user to the Users table.
+    private static final String INSERT_USER_DATA = ""
+	+ "INSERT INTO Users (username, salt, hash, balance)"
+	+ " VALUES (?, ?, ?, ?);";
+
+    // Used to get the top n direct flights from src to dst on a given day in July 2015. 
+    private static final String DIRECT_FLIGHT = ""
+	+ "SELECT top(?)"
+	+ "       fid,"  
+	+ "       day_of_month,"
+	+ "       carrier_id,"  
+	+ "       flight_num,"  
+	+ "       origin_city,"  
+	+ "       dest_city,"  
+	+ "       actual_time,"  
+	+ "       capacity,"  
+	+ "       price"  
+	+ "  FROM Flights"
+	+ " WHERE origin_city = ?"
+	+ "   AND dest_city = ?"
+	+ "   AND day_of_month = ?"
+	+ "   AND canceled <> 1"
+	+ " ORDER BY actual_time ASC,"
+	+ "       fid ASC;";
+
+    // Used to get the top one-hop flights from src to dst on a given day in July 2015.
+    private static final String ONE_HOP_FLIGHT = ""
+	+ "SELECT TOP(?)"
+	+ "       f1.fid AS f1_fid,"  
+	+ "       f1.day_of_month AS f1_day_of_month,"
+	+ "       f1.carrier_id AS f1_carrier_id,"  
+	+ "       f1.flight_num AS f1_flight_num,"  
+	+ "       f1.origin_city AS f1_origin_city,"  
+	+ "       f1.dest_city AS f1_dest_city,"  
+	+ "       f1.actual_time AS f1_actual_time,"  
+	+ "       f1.capacity AS f1_capacity,"  
+	+ "       f1.price AS f1_price,"  
+	+ "       f2.fid AS f2_fid,"  
+	+ "       f2.day_of_month AS f2_day_of_month,"
+	+ "       f2.carrier_id AS f2_carrier_id,"  
+	+ " 	 f2.flight_num AS f2_flight_num,"
+	+ "	 f2.origin_city AS f2_origin_city,"
+	+ "       f2.dest_city AS f2_dest_city,"  
+	+ "       f2.actual_time AS f2_actual_time,"  
+	+ "       f2.capacity AS f2_capacity,"  
+	+ "       f2.price AS f2_price"  + "  FROM flights as f1,"
+	+ "       flights as f2"
+	+ " WHERE f1.origin_city = ?"
+	+ "   AND f2.dest_city = ?"
+	+ "   AND f1.day_of_month = ?"
+	+ "   AND f1.dest_city = f2.origin_city"
+	+ "   AND f1.day_of_month = f2.day_of_month"
+	+ "   AND f1.canceled <> 1"
+	+ "   AND f2.canceled <> 1"
+	+ " ORDER BY (f1.actual_time + f2.actual_time) ASC,"
+	+ "       f1.fid,"
+	+ "       f2.fid;";
+
+    // Used instead of ONE_HOP_FLIGHT to read the top one-hop flights precomputed by
+    // OneHopTable, when it kept at least as many as the search needs.
+    private static final String ONE_HOP_RANGE = ""
+	+ "SELECT TOP(?)"
+	+ "       f1.fid AS f1_fid,"
+	+ "       f1.day_of_month AS f1_day_of_month,"
+	+ "       f1.carrier_id AS f1_carrier_id,"
+	+ "       f1.flight_num AS f1_flight_num,"
+	+ "       f1.origin_city AS f1_origin_city,"
+	+ "       f1.dest_city AS f1_dest_city,"
+	+ "       f1.actual_time AS f1_actual_time,"
+	+ "       f1.capacity AS f1_capacity,"
+	+ "       f1.price AS f1_price,"
+	+ "       f2.fid AS f2_fid,"
+	+ "       f2.day_of_month AS f2_day_of_month,"
+	+ "       f2.carrier_id AS f2_carrier_id,"
+	+ "       f2.flight_num AS f2_flight_num,"
+	+ "       f2.origin_city AS f2_origin_city,"
+	+ "       f2.dest_city AS f2_dest_city,"
+	+ "       f2.actual_time AS f2_actual_time,"
+	+ "       f2.capacity AS f2_capacity,"
+	+ "       f2.price AS f2_price"
+	+ "  FROM OneHops AS h"
+	+ "  JOIN Flights AS f1 ON f1.fid = h.fid1"
+	+ "  JOIN Flights AS f2 ON f2.fid = h.fid2"
+	+ " WHERE h.origin_city = ?"
+	+ "   AND h.dest_city = ?"
+	+ "   AND h.day_of_month = ?"
+	+ " ORDER BY h.hop_rank;";
+
+    // Add a new Reservation to the Reservations table.
+    private static final String ADD_RESERVATION = ""
+	+ "INSERT INTO Reservations (id, username, price, paid, canceled, fid1, fid2, extra_legs)"
+	+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?);";  
+
+    // Add a flight after the second one of a reservation.
+    private static final String ADD_RESERVATION_LEG = ""
+	+ "INSERT INTO ReservationLegs (id, leg, fid)"
+	+ " VALUES (?, ?, ?);";
+
+    // Book one seat on a flight if it has one left, creating its BookedSeats row on the
+    // first booking. Updates one row if the seat was booked and none if the flight is full.
+    private static final String RESERVE_SEAT = ""
+	+ "MERGE INTO BookedSeats AS b"
+	+ " USING (SELECT fid, capacity"
+	+ "          FROM Flights"
+	+ "         WHERE fid = ?) AS f"
+	+ "    ON b.fid = f.fid"
+	+ "  WHEN MATCHED AND b.seats < f.capacity THEN"
+	+ "       UPDATE SET seats = b.seats + 1"
+	+ "  WHEN NOT MATCHED AND f.capacity > 0 THEN"
+	+ "       INSERT (fid, seats) VALUES (f.fid, 1);";
+
+    // Return the number of seats left on a flight. The BookedSeats row, or the gap where
+    // it goes, is update locked until commit, so that two batches sharing the flight
+    // queue up instead of both holding shared locks they can't upgrade for
+    // RESERVE_SEATS.
+    private static final String GET_SEATS_LEFT = ""
+	+ "SELECT f.capacity - COALESCE(b.seats, 0) AS seats_left"
+	+ "  FROM Flights AS f"
+	+ "  LEFT JOIN BookedSeats AS b WITH (UPDLOCK, HOLDLOCK) ON b.fid = f.fid"
+	+ " WHERE f.fid = ?;";
+
+    // Book the given number of seats on a flight, which the caller checked it has left.
+    private static final String RESERVE_SEATS = ""
+	+ "MERGE INTO BookedSeats AS b"
+	+ " USING (SELECT fid"
+	+ "          FROM Flights"
+	+ "         WHERE fid = ?) AS f"
+	+ "    ON b.fid = f.fid"
+	+ "  WHEN MATCHED THEN"
+	+ "       UPDATE SET seats = b.seats + ?"
+	+ "  WHEN NOT MATCHED THEN"
+	+ "       INSERT (fid, seats) VALUES (f.fid, ?);";
+
+    // Allocate the given number of reservation IDs at once, for a batch of bookings.
+    private static final String ADD_RESERVATION_IDS = ""
+	+ "UPDATE ReservationIds"
+	+ "   SET last_id = last_id + ?"
+	+ " WHERE id = 1;";
+
+    // Allocate the next reservation ID. The row stays locked until the booking
+    // commits or rolls back, so IDs of successful bookings stay dense.
+    private static final String INCREMENT_RESERVATION_ID = ""
+	+ "UPDATE ReservationIds"
+	+ "   SET last_id = last_id + 1"
+	+ " WHERE id = 1;";
+
+    // Get the most recently allocated reservation ID.
+    private static final String GET_RESERVATION_ID = ""
+	+ "SELECT last_id"
+	+ "  FROM ReservationIds"
+	+ " WHERE id = 1;";
+
+    // Used to reset the reservation IDs.
+    private static final String CLEAR_RESERVATION_IDS = ""
+	+ "UPDATE ReservationIds"
+	+ "   SET last_id = 0;";
+
+    // Get a user's reservations on a given day 
+    private static final String GET_USER_OPEN_RESERVATIONS_ON_DAY = ""
+	+ "SELECT COUNT(*) AS count"
+	+ "  FROM Flights AS f,"
+	+ "       (SELECT fid1"
+	+ "          FROM Reservations"
+	+ "         WHERE username = ?) AS r"
+	+ " WHERE r.fid1 = f.fid"
+	+ "   AND f.day_of_month = ?;"; 
+
+    // Return whether the given username booked the given reservation.
+    private static final String DID_USER_BOOK_RESERVATION = ""
+	+ "SELECT COUNT(*) AS count"
+	+ "  FROM Reservations"
+	+ " WHERE id = ?"
+	+ "   AND username = ?" 
+	+ "   AND paid = 0"
+	+ "   AND canceled = 0;";
+
+    // Update the attribute for the given reservationId with the given value.
+    private static final String UPDATE_RESERVATION_PAID = ""
+	+ "UPDATE Reservations"
+	+ "   SET paid = ?, version = version + 1"
+	+ " WHERE id = ?"; 
+
+    // Return the attribute for the given username.
+    private static final String GET_USER_BALANCE = ""
+	+ "SELECT balance"
+	+ "  FROM Users"
+	+ " WHERE username = ?;";
+
+    // Update the attribute for the given username with the given value.
+    private static final String UPDATE_USER_BALANCE = ""
+	+ "UPDATE Users"
+	+ "   SET balance = ?, version = version + 1"
+	+ " WHERE username = ?"; 
+
+    // Get reservation cost. 
+    private static final String GET_RESERVATION_PRICE = ""
+	+ "SELECT price"
+	+ "  FROM Reservations"
+	+ " WHERE id = ?;";
+
+    // Get the given user's reservations.
+    // Along with the flights after the second one, a row for each, so that the
+    // reservations and their legs are read in one statement.
+    private static final String GET_USER_OPEN_RESERVATIONS = ""
+	+ "SELECT r.id, r.price, r.paid, r.canceled, r.fid1, r.fid2, r.extra_legs, l.leg, l.fid"
+	+ "  FROM Reservations AS r"
+	+ "  LEFT JOIN ReservationLegs AS l ON l.id = r.id"
+	+ " WHERE r.username = ?"
+	+ "   AND r.canceled = 0"
+	+ " ORDER BY r.id, l.leg;";
+
+    // Get the given user's salt and hash.
+    private static final String GET_USER_CREDENTIALS = ""
+	+ "SELECT salt, hash"
+	+ "  FROM Users"
+	+ " WHERE username = ?;";
+
+    // Get a flight's information via fid.
+    private static final String GET_FLIGHT = ""
+	+ "SELECT day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price"
+	+ "  FROM Flights"
+	+ " WHERE fid = ?;";
+
+    // Get several flights' information via fid. The IN list is appended per call.
+    private static final String GET_FLIGHTS = ""
+	+ "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price"
+	+ "  FROM Flights"
+	+ " WHERE fid IN ";
+
+    // Change a reservation's ancellation attribute status.
+    private static final String SET_RESERVATION_CANCELLATION = ""
+	+ "UPDATE Reservations"
+	+ "   SET canceled = ?, version = version + 1"
+	+ " WHERE id = ?;";
+
+    // Read an open reservation of the given user along with the user's balance, and the
+    // versions of both rows, for optimistic payments and cancellations.
+    private static final String GET_VERSIONED_RESERVATION = ""
+	+ "SELECT r.price, r.paid, r.version, u.balance, u.version AS user_version"
+	+ "  FROM Reservations AS r"
+	+ "  JOIN Users AS u ON u.username = r.username"
+	+ " WHERE r.id = ?"
+	+ "   AND r.username = ?"
+	+ "   AND r.canceled = 0;";
+
+    // Update the user's balance if the user is still at the given version.
+    private static final String UPDATE_USER_BALANCE_IF_VERSION = ""
+	+ "UPDATE Users"
+	+ "   SET balance = ?, version = version + 1"
+	+ " WHERE username = ?"
+	+ "   AND version = ?;";
+
+    // Mark the reservation paid if it is still at the given version.
+    private static final String UPDATE_RESERVATION_PAID_IF_VERSION = ""
+	+ "UPDATE Reservations"
+	+ "   SET paid = 1, version = version + 1"
+	+ " WHERE id = ?"
+	+ "   AND version = ?;";
+
+    // Mark the reservation canceled if it is still at the given version.
+    private static final String UPDATE_RESERVATION_CANCELED_IF_VERSION = ""
+	+ "UPDATE Reservations"
+	+ "   SET canceled = 1, version = version + 1"
+	+ " WHERE id = ?"
+	+ "   AND version = ?;";
+
+    // Returns results there's a user in the Reservations table with the given reservation Id. 
+    private static final String RESERVATION_MATCHES_USER = ""
+	+ "SELECT COUNT(*) AS count"
+	+ "  FROM Reservations"
+	+ " WHERE id = ?"
+	+ "   AND username = ?"
+	+ "   AND canceled = 0;";
+
+
+    /**
+     * Class constructor. Sessions borrow a connection from the given pool for each
+     * operation.
+     */
+    public JdbcStorage(ConnectionPool pool) throws SQLException {
+	this(pool, null);
+    }
+
+    /**
+     * Class constructor. Sessions borrow a connection for each operation, from the given
+     * pool of the primary or, for read-only operations, from a replica of the given set.
+     *
+     * @param pool     lends out the connections to the primary
+     * @param replicas read replicas of the database, closed with the storage, or null
+     */
+    public JdbcStorage(ConnectionPool pool, ReplicaSet replicas) throws SQLException {
+	this(pool, false, replicas);
+    }
+
+    /**
+     * Class constructor.
+     *
+     * @param pool      lends out the connections of the sessions
+     * @param dedicated whether each session keeps one connection until it is closed
+     */
+    public JdbcStorage(ConnectionPool pool, boolean dedicated) throws SQLException {
+	this(pool, dedicated, null);
+    }
+
+    private JdbcStorage(ConnectionPool pool, boolean dedicated, ReplicaSet replicas) throws SQLException {
+	this.pool = pool;
+	this.dedicated = dedicated;
+	this.replicas = replicas;
+
+	ConnectionPool.PooledConnection pooled = pool.borrow();
+	try {
+	    loadRouteIndex(pooled.getConnection());
+	} finally {
+	    pool.release(pooled);
+	}
+    }
+
+    /**
+     * Load the shared route index the first time a storage is constructed unless the
+     * flightapp.route_index system property is false, and look up how much of the
+     * OneHops table there is unless flightapp.one_hop_table is false.
+     */
+    private static synchronized void loadRouteIndex(Connection conn) throws SQLException {
+	if (routeIndexLoaded) {
+	    return;
+	}
+	if (Boolean.parseBoolean(System.getProperty("flightapp.route_index", "true"))) {
+	    routeIndex = RouteIndex.load(conn);
+	}
+	if (Boolean.parseBoolean(System.getProperty("flightapp.one_hop_table", "true"))) {
+	    oneHopLimit = OneHopTable.limit(conn);
+	}
+	routeIndexLoaded = true;
+    }
+
+    @Override
+    public JdbcSession openSession() throws SQLException {
+	JdbcSession session = new JdbcSession();
+	if (dedicated) {
+	    session.bind(pool, pool.borrow());
+	}
+	return session;
+    }
+
+    /**
+     * Close the connection pools.
+     */
+    @Override
+    public void close() {
+	pool.close();
+	if (replicas != null) {
+	    replicas.close();
+	}
+    }
+
+    /**
+     * Return the JDBC isolation level with the given flightapp.read_isolation name.
+     */
+    private static int readIsolation(String name) {
+	switch (name.toLowerCase()) {
+	case "serializable":
+	    return Connection.TRANSACTION_SERIALIZABLE;
+	case "read_committed":
+	    return Connection.TRANSACTION_READ_COMMITTED;
+	case "snapshot":
+	    return TRANSACTION_SNAPSHOT;
+	default:
+	    throw new IllegalArgumentException("Unknown flightapp.read_isolation: " + name);
+	}
+    }
+
+    /**
+     * Work done on a session's bound connection. Work returns null when it found that
+     * another transaction got in its way and it should be tried again.
+     */
+    private interface Work<T> {
+	T run() throws SQLException;
+    }
+
+    /**
+     * A session of the database. Its connection and prepared statements are bound
+     * only while an operation runs, unless the storage is dedicated.
+     */
+    class JdbcSession implements Storage.Session {
+	// DB Connection, and the pool it was borrowed from
+	private ConnectionPool.PooledConnection pooled;
+	private Connection conn;
+	private ConnectionPool source;
+
+	// Let lastWriteNanos be the System.nanoTime() when the session's last write
+	// finished, if hasWritten.
+	private long lastWriteNanos;
+	private boolean hasWritten;
+
+	// Let inTransaction be true between begin() and commit() or rollback().
+	private boolean inTransaction;
+
+	// Let inReadSnapshot be true while a read-only transaction holds its snapshot open.
+	private boolean inReadSnapshot;
+
+	// Let attempts count the attempts made on this session, to sample the @@TRANCOUNT check.
+	private int attempts;
+
+	// Let these count what happened during the session, for the transaction metrics.
+	private int retries;
+	private int deadlocks;
+
+	// Prepared statements of the bound connection
+	private PreparedStatement tranCountStatement;
+	private PreparedStatement clearUsersStatement;
+	private PreparedStatement clearReservationsStatement;
+	private PreparedStatement clearReservationLegsStatement;
+	private PreparedStatement clearBookedSeatsStatement;
+	private PreparedStatement clearReservationIdsStatement;
+	private PreparedStatement isUsernameTakenStatement;
+	private PreparedStatement addUserStatement;
+	private PreparedStatement getUserCredentialsStatement;
+	private PreparedStatement getUserBalanceStatement;
+	private PreparedStatement setUserBalanceStatement;
+	private PreparedStatement directFlightStatement;
+	private PreparedStatement oneHopFlightStatement;
+	private PreparedStatement oneHopRangeStatement;
+	private PreparedStatement getFlightStatement;
+	private PreparedStatement addReservationStatement;
+	private PreparedStatement addReservationLegStatement;
+	private PreparedStatement reserveSeatStatement;
+	private PreparedStatement getSeatsLeftStatement;
+	private PreparedStatement reserveSeatsStatement;
+	private PreparedStatement addReservationIdsStatement;
+	private PreparedStatement incrementReservationIdStatement;
+	private PreparedStatement getReservationIdStatement;
+	private PreparedStatement doesUserHaveReservationStatement;
+	private PreparedStatement userHasUnpaidReservationStatement;
+	private PreparedStatement setReservationPaidStatement;
+	private PreparedStatement getReservationPriceStatement;
+	private PreparedStatement getOpenReservationsStatement;
+	private PreparedStatement setReservationCanceledStatement;
+	private PreparedStatement reservationMatchesUserStatement;
+	private PreparedStatement getVersionedReservationStatement;
+	private PreparedStatement setUserBalanceIfVersionStatement;
+	private PreparedStatement setReservationPaidIfVersionStatement;
+	private PreparedStatement setReservationCanceledIfVersionStatement;
+
+	/**
+	 * Get the bound connection, or null if none is bound.
+	 */
+	Connection getConnection() {
+	    return conn;
+	}
+
+	@Override
+	public int retries() {
+	    return retries;
+	}
+
+	@Override
+	public int deadlocks() {
+	    return deadlocks;
+	}
+
+	/**
+	 * Return the session's connection to the pool if it keeps one.
+	 */
+	@Override
+	public void close() {
+	    if (pooled != null) {
+		source.release(pooled);
+		this.pooled = null;
+		this.conn = null;
+		this.source = null;
+	    }
+	}
+
+	/**
+	 * Bind the given connection of the given pool and its prepared statements to this
+	 * session, releasing the connection if its statements can't be prepared.
+	 */
+	private void bind(ConnectionPool source, ConnectionPool.PooledConnection pooled) throws SQLException {
+	    this.source = source;
+	    this.pooled = pooled;
+	    this.conn = pooled.getConnection();
+	    try {
+		prepareStatements();
+	    } catch (SQLException e) {
+		close();
+		throw e;
+	    }
+	}
+
+	/*
+	 * prepare all the SQL statements in this method. Statements are only prepared
+	 * once per pooled connection and looked up afterwards.
+	 */
+	private void prepareStatements() throws SQLException {
+	    // Flights statements
+	    directFlightStatement = pooled.prepare(DIRECT_FLIGHT);
+	    oneHopFlightStatement = pooled.prepare(ONE_HOP_FLIGHT);
+	    oneHopRangeStatement = oneHopLimit > 0 ? pooled.prepare(ONE_HOP_RANGE) : null;
+	    getFlightStatement = pooled.prepare(GET_FLIGHT);
+
+	    // Users Statements
+	    clearUsersStatement = pooled.prepare(CLEAR_USERS);
+	    isUsernameTakenStatement = pooled.prepare(CHECK_USERNAME_EXISTS);
+	    addUserStatement = pooled.prepare(INSERT_USER_DATA);
+	    getUserCredentialsStatement = pooled.prepare(GET_USER_CREDENTIALS);
+	    getUserBalanceStatement = pooled.prepare(GET_USER_BALANCE);
+	    setUserBalanceStatement = pooled.prepare(UPDATE_USER_BALANCE);
+
+	    // Reservations Statements
+	    clearReservationsStatement = pooled.prepare(CLEAR_RESERVATIONS);
+	    clearReservationLegsStatement = pooled.prepare(CLEAR_RESERVATION_LEGS);
+	    addReservationStatement = pooled.prepare(ADD_RESERVATION);
+	    addReservationLegStatement = pooled.prepare(ADD_RESERVATION_LEG);
+	    incrementReservationIdStatement = pooled.prepare(INCREMENT_RESERVATION_ID);
+	    getReservationIdStatement = pooled.prepare(GET_RESERVATION_ID);
+	    clearReservationIdsStatement = pooled.prepare(CLEAR_RESERVATION_IDS);
+	    userHasUnpaidReservationStatement = pooled.prepare(DID_USER_BOOK_RESERVATION);
+	    setReservationPaidStatement = pooled.prepare(UPDATE_RESERVATION_PAID);
+	    getReservationPriceStatement = pooled.prepare(GET_RESERVATION_PRICE);
+	    getOpenReservationsStatement = pooled.prepare(GET_USER_OPEN_RESERVATIONS);
+	    setReservationCanceledStatement = pooled.prepare(SET_RESERVATION_CANCELLATION);
+	    reservationMatchesUserStatement = pooled.prepare(RESERVATION_MATCHES_USER);
+	    getVersionedReservationStatement = pooled.prepare(GET_VERSIONED_RESERVATION);
+	    setUserBalanceIfVersionStatement = pooled.prepare(UPDATE_USER_BALANCE_IF_VERSION);
+	    setReservationPaidIfVersionStatement = pooled.prepare(UPDATE_RESERVATION_PAID_IF_VERSION);
+	    setReservationCanceledIfVersionStatement = pooled.prepare(UPDATE_RESERVATION_CANCELED_IF_VERSION);
+
+	    // BookedSeats Statements
+	    clearBookedSeatsStatement = pooled.prepare(CLEAR_BOOKED_SEATS);
+	    reserveSeatStatement = pooled.prepare(RESERVE_SEAT);
+	    getSeatsLeftStatement = bookingPipeline != null ? pooled.prepare(GET_SEATS_LEFT) : null;
+	    reserveSeatsStatement = bookingPipeline != null ? pooled.prepare(RESERVE_SEATS) : null;
+	    addReservationIdsStatement = bookingPipeline != null ? pooled.prepare(ADD_RESERVATION_IDS) : null;
+
+	    // Misc.
+	    tranCountStatement = TRANCOUNT_SAMPLE > 0 ? pooled.prepare(TRANCOUNT_SQL) : null;
+	    doesUserHaveReservationStatement = pooled.prepare(GET_USER_OPEN_RESERVATIONS_ON_DAY);
+	}
+
+	/**
+	 * Run the given work on a connection bound to this session, at the given isolation
+	 * level, retrying it by the given policy unless that is null. Throw the last error
+	 * if every attempt failed.
+	 */
+	private <T> T transaction(RetryPolicy retryPolicy, int isolation, Work<T> work) throws SQLException {
+	    // Sessions of a dedicated storage are already bound.
+	    if (pooled != null) {
+		return runAtIsolation(retryPolicy, isolation, work);
+	    }
+
+	    bind(pool, pool.borrow());
+	    try {
+		return runAtIsolation(retryPolicy, isolation, work);
+	    } finally {
+		close();
+	    }
+	}
+
+	/**
+	 * Run the given read-only work like transaction(), but on a replica if there are
+	 * any and the session isn't dedicated. Work that reads what the session itself
+	 * writes stays on the primary while the session's last write may not have reached
+	 * the replicas. If no replica connection can be had, the work runs on the primary.
+	 */
+	private <T> T read(boolean readsOwnWrites, RetryPolicy retryPolicy, int isolation, Work<T> work)
+		throws SQLException {
+	    if (replicas == null || pooled != null || (readsOwnWrites && hasWritten && replicas.mayLag(lastWriteNanos))) {
+		return transaction(retryPolicy, isolation, work);
+	    }
+
+	    ConnectionPool replica = replicas.choose();
+	    ConnectionPool.PooledConnection borrowed;
+	    try {
+		borrowed = replica.borrow();
+	    } catch (SQLException e) {
+		e.printStackTrace();
+		return transaction(retryPolicy, isolation, work);
+	    }
+
+	    bind(replica, borrowed);
+	    try {
+		return runAtIsolation(retryPolicy, isolation, work);
+	    } finally {
+		close();
+	    }
+	}
+
+	/**
+	 * Note that a write of the session just finished, whether or not it succeeded.
+	 */
+	private void wrote() {
+	    lastWriteNanos = System.nanoTime();
+	    hasWritten = true;
+	}
+
+	/**
+	 * Run the work at the given isolation level on the bound connection. Snapshot
+	 * transactions run inside a single database transaction so that all their reads
+	 * see the same snapshot.
+	 */
+	private <T> T runAtIsolation(RetryPolicy retryPolicy, int isolation, Work<T> work) throws SQLException {
+	    boolean snapshot = isolation == TRANSACTION_SNAPSHOT && !inReadSnapshot;
+	    pooled.setTransactionIsolation(isolation);
+	    if (snapshot) {
+		begin();
+		inReadSnapshot = true;
+	    }
+
+	    try {
+		return attempt(retryPolicy, work);
+	    } finally {
+		if (snapshot) {
+		    inReadSnapshot = false;
+		    try {
+			if (inTransaction) {
+			    commit();
+			}
+		    } catch (SQLException e) {
+			e.printStackTrace();
+		    }
+		}
+	    }
+	}
+
+	/**
+	 * Run the work until it succeeds or the policy's attempts run out, backing off
+	 * before each retry and rolling back failed attempts.
+	 */
+	private <T> T attempt(RetryPolicy retryPolicy, Work<T> work) throws SQLException {
+	    int maxAttempts = retryPolicy == null ? 1 : retryPolicy.getMaxAttempts();
+	    int failedAttempts = 0;
+	    int deadlocksSeen = 0;
+	    SQLException error = null;
+	    T result = null;
+
+	    for (int attempt = 0; attempt < maxAttempts && result == null; attempt++) {
+		if (attempt > 0 && retryPolicy != null) {
+		    retryPolicy.backoff(attempt);
+		}
+		// Rolling back a failed attempt ended the read snapshot, so that the retry
+		// would otherwise read every statement from a snapshot of its own.
+		if (inReadSnapshot && !inTransaction) {
+		    begin();
+		}
+		try {
+		    result = work.run();
+		    if (result == null) {
+			// Another transaction changed the rows first.
+			failedAttempts++;
+		    }
+		} catch (SQLException e) {
+		    failedAttempts++;
+		    error = e;
+		    e.printStackTrace();
+		    if (isDeadLock(e)) {
+			deadlocksSeen++;
+		    }
+		    try {
+			if (inTransaction) {
+			    rollback();
+			}
+		    } catch (SQLException e2) {
+			e2.printStackTrace();
+		    }
+		} finally {
+		    checkDanglingTransaction();
+		}
+	    }
+
+	    boolean gaveUp = result == null;
+	    retries += gaveUp ? Math.max(0, failedAttempts - 1) : failedAttempts;
+	    deadlocks += deadlocksSeen;
+	    if (retryPolicy != null) {
+		retryPolicy.observe(failedAttempts + (gaveUp ? 0 : 1), deadlocksSeen);
+	    }
+
+	    if (gaveUp) {
+		throw error != null ? error : new SQLException("Gave up after " + maxAttempts + " conflicting attempts");
+	    }
+	    return result;
+	}
+
+	@Override
+	public void clear() throws SQLException {
+	    try {
+		clearTables();
+	    } finally {
+		wrote();
+	    }
+	}
+
+	private void clearTables() throws SQLException {
+	    transaction(null, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		// Clear the Users table.
+		clearUsersStatement.executeUpdate();
+
+		// Clear the Reservations table, after the legs that reference it.
+		clearReservationLegsStatement.executeUpdate();
+		clearReservationsStatement.executeUpdate();
+
+		// Clear the Booked Seats table.
+		clearBookedSeatsStatement.executeUpdate();
+
+		// Start the reservation IDs over from 1.
+		clearReservationIdsStatement.executeUpdate();
+		return Boolean.TRUE;
+	    });
+	}
+
+	@Override
+	public Credentials getCredentials(String username) throws SQLException {
+	    Optional<Credentials> credentials = transaction(null, READ_ISOLATION, () -> {
+		getUserCredentialsStatement.clearParameters();
+		getUserCredentialsStatement.setString(1, username.toLowerCase());
+		try (ResultSet rs = getUserCredentialsStatement.executeQuery()) {
+		    if (!rs.next()) {
+			return Optional.empty();
+		    }
+		    return Optional.of(new Credentials(rs.getBytes("salt"), rs.getBytes("hash")));
+		}
+	    });
+	    return credentials.orElse(null);
+	}
+
+	@Override
+	public boolean createUser(String username, byte[] salt, byte[] hash, int balance) throws SQLException {
+	    try {
+		return addUserIfAbsent(username, salt, hash, balance);
+	    } finally {
+		wrote();
+	    }
+	}
+
+	private boolean addUserIfAbsent(String username, byte[] salt, byte[] hash, int balance) throws SQLException {
+	    return transaction(createRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		begin();
+
+		// Verify that the username doesn't alredy exist.
+		if (isUsernameTaken(username)) {
+		    commit();
+		    return Boolean.FALSE;
+		}
+
+		// Add a new user to the Users table.
+		addUser(username, salt, hash, balance);
+
+		commit();
+		return Boolean.TRUE;
+	    });
+	}
+
+	/**
+	 * Return true if the given username is already in the Users table and false otherwise.
+	 */
+	private boolean isUsernameTaken(String username) throws SQLException {
+	    isUsernameTakenStatement.clearParameters();
+	    isUsernameTakenStatement.setString(1, username.toLowerCase());
+	    ResultSet rs = isUsernameTakenStatement.executeQuery();
+	    rs.next();
+	    boolean result = rs.getInt("count") == 1;
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Add a new user to the Users table.
+	 */
+	private void addUser(String username, byte[] salt, byte[] hash, int amount) throws SQLException {
+	    addUserStatement.clearParameters();
+	    addUserStatement.setString(1, username.toLowerCase());
+	    addUserStatement.setBytes(2, salt);
+	    addUserStatement.setBytes(3, hash);
+	    addUserStatement.setInt(4, amount);
+	    addUserStatement.executeUpdate();
+	}
+
+	@Override
+	public void search(String origin, String destination, boolean directOnly, int day, int count,
+		List<Query.Itinerary> directs, List<Query.Itinerary> indirects) throws SQLException {
+	    // The route index answers searches without a connection.
+	    RouteIndex index = routeIndex;
+	    if (index != null) {
+		index.getDirectFlights(directs, count, origin, destination, day);
+		if (count - directs.size() > 0 && !directOnly) {
+		    index.getIndirectFlights(indirects, count - directs.size(), origin, destination, day);
+		}
+		return;
+	    }
+
+	    // Flights never change, so any replica can search them.
+	    read(false, null, READ_ISOLATION, () -> {
+		// Let flights hold the flights read so far, so that a flight in several
+		// itineraries, such as a common first leg, is only built once.
+		Map<Integer, Query.Flight> flights = new HashMap<>();
+		getDirectFlights(directs, count, origin, destination, day, flights);
+
+		// Can only accept indirect flights if they are admissible
+		// and there aren't already too many itineraries stored.
+		int numItinerarySpaces = count - directs.size();
+		if (numItinerarySpaces > 0 && !directOnly) {
+		    getIndirectFlights(indirects, numItinerarySpaces, origin, destination, day, flights);
+		}
+		return Boolean.TRUE;
+	    });
+	}
+
+	/**
+	 * Add direct flights up to the given maximum number to the given list.
+	 */
+	private void getDirectFlights(List<Query.Itinerary> itineraries, int max, String origin, String destination, int day,
+		Map<Integer, Query.Flight> flights) throws SQLException {
+	    directFlightStatement.clearParameters();
+	    directFlightStatement.setInt(1, max);
+	    directFlightStatement.setString(2, origin);
+	    directFlightStatement.setString(3, destination);
+	    directFlightStatement.setInt(4, day);
+	    ResultSet rs = directFlightStatement.executeQuery();
+
+	    while (rs.next()) {
+		Query.Flight flight1 = readSearchFlight(rs, 1, flights);
+		Query.Itinerary itinerary = new Query.Itinerary(flight1, null, flight1.time, true);
+		itineraries.add(itinerary);
+	    }
+
+	    rs.close();
+	}
+
+	/**
+	 * Add indirect flights up to the given maximum number to the given list, from the
+	 * OneHops table if it holds that many per route and otherwise by joining Flights.
+	 */
+	private void getIndirectFlights(List<Query.Itinerary> itineraries, int max, String origin, String destination, int day,
+		Map<Integer, Query.Flight> flights) throws SQLException {
+	    PreparedStatement statement = (max <= oneHopLimit) ? oneHopRangeStatement : oneHopFlightStatement;
+	    statement.clearParameters();
+	    statement.setInt(1, max);
+	    statement.setString(2, origin);
+	    statement.setString(3, destination);
+	    statement.setInt(4, day);
+	    ResultSet rs = statement.executeQuery();
+
+	    while (rs.next()) {
+		// Flight 1 is in the first nine columns and flight 2 in the next nine.
+		Query.Flight flight1 = readSearchFlight(rs, 1, flights);
+		Query.Flight flight2 = readSearchFlight(rs, 10, flights);
+
+		// Itinerary with multiple flights holds the total flight time.
+		int totalFlightTime = flight1.time + flight2.time;
+
+		// Add the flights to an itinerary.
+		Query.Itinerary itinerary = new Query.Itinerary(flight1, flight2, totalFlightTime, false);
+
+		// And add the itinerary to the itinerarys list.
+		itineraries.add(itinerary);
+	    }
+
+	    rs.close();
+	}
+
+	/**
+	 * Return the flight in the nine columns of the current row of a search starting at
+	 * the given column, in the order of DIRECT_FLIGHT, reusing the flight if the given
+	 * map already has it. Only the fid is read in that case.
+	 */
+	private Query.Flight readSearchFlight(ResultSet rs, int column, Map<Integer, Query.Flight> flights) throws SQLException {
+	    int fid = rs.getInt(column);
+	    Query.Flight flight = flights.get(fid);
+	    if (flight == null) {
+		flight = new Query.Flight(fid, rs.getInt(column + 1), rs.getString(column + 2), rs.getString(column + 3),
+			rs.getString(column + 4), rs.getString(column + 5), rs.getInt(column + 6), rs.getInt(column + 7),
+			rs.getInt(column + 8));
+		flights.put(fid, flight);
+	    }
+	    return flight;
+	}
+
+	@Override
+	public int book(String username, Query.Itinerary itinerary) throws SQLException {
+	    try {
+		return bookItinerary(username, itinerary);
+	    } finally {
+		wrote();
+	    }
+	}
+
+	private int bookItinerary(String username, Query.Itinerary itinerary) throws SQLException {
+	    if (bookingPipeline != null) {
+		return bookingPipeline.book(username, itinerary, this::bookBatch);
+	    }
+
+	    return transaction(bookRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		boolean userAlreadyHasReservation = doesUserHaveReservation(username, itinerary.flight1.dayOfMonth);
+		if (userAlreadyHasReservation) {
+		    return SAME_DAY;
+		}
+
+		begin();
+
+		boolean seatsReserved = reserveSeats(itinerary);
+		if (!seatsReserved) {
+		    rollback();
+		    return FULL;
+		}
+
+		// Allocate the ID last to hold the lock on it as briefly as possible.
+		int reservationId = allocateReservationId();
+		addReservation(reservationId, username, itinerary);
+
+		commit();
+		return reservationId;
+	    });
+	}
+
+	/**
+	 * Book a batch of the booking pipeline, whose itineraries all have the same
+	 * flights, in one transaction. Bookings are decided in order exactly as book()
+	 * would decide them one after the other, but the seats left are read once, and the
+	 * seats and reservation IDs of the whole batch are then taken at once.
+	 */
+	private int[] bookBatch(List<BookingPipeline.Request> requests) throws SQLException {
+	    return transaction(bookRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		Query.Itinerary itinerary = requests.get(0).itinerary;
+		int day = itinerary.flight1.dayOfMonth;
+		int[] fids = new int[itinerary.flights.length];
+		for (int i = 0; i < fids.length; i++) {
+		    fids[i] = itinerary.flights[i].fid;
+		}
+		Arrays.sort(fids);
+
+		// Let reservationsOnDay count each user's reservations on the day. Like book(),
+		// count them before the transaction, so that it holds no locks on Reservations
+		// until it inserts into it.
+		Map<String, Integer> reservationsOnDay = new HashMap<>();
+		for (BookingPipeline.Request request : requests) {
+		    String key = request.username.toLowerCase();
+		    if (!reservationsOnDay.containsKey(key)) {
+			reservationsOnDay.put(key, countReservationsOnDay(request.username, day));
+		    }
+		}
+
+		begin();
+
+		// Lock the flights in fid order, like reserveSeats().
+		int seatsLeft = Integer.MAX_VALUE;
+		for (int fid : fids) {
+		    seatsLeft = Math.min(seatsLeft, getSeatsLeft(fid));
+		}
+
+		// Count the bookings of the batch along with the reservations, since they
+		// aren't added until the end.
+		int[] results = new int[requests.size()];
+		int numBooked = 0;
+		for (int i = 0; i < results.length; i++) {
+		    String key = requests.get(i).username.toLowerCase();
+		    if (reservationsOnDay.get(key) == 1) {
+			results[i] = SAME_DAY;
+		    } else if (numBooked == seatsLeft) {
+			results[i] = FULL;
+		    } else {
+			reservationsOnDay.merge(key, 1, Integer::sum);
+			numBooked++;
+			results[i] = 1;
+		    }
+		}
+
+		if (numBooked == 0) {
+		    rollback();
+		    return results;
+		}
+
+		for (int fid : fids) {
+		    reserveSeats(fid, numBooked);
+		}
+
+		// Hand out the IDs in the order of the batch.
+		int reservationId = allocateReservationIds(numBooked) - numBooked;
+		for (int i = 0; i < results.length; i++) {
+		    if (results[i] > 0) {
+			results[i] = ++reservationId;
+			addReservation(reservationId, requests.get(i).username, requests.get(i).itinerary);
+		    }
+		}
+
+		commit();
+		return results;
+	    });
+	}
+
+	/**
+	 * Return the number of seats left on the given flight.
+	 */
+	private int getSeatsLeft(int fid) throws SQLException {
+	    getSeatsLeftStatement.clearParameters();
+	    getSeatsLeftStatement.setInt(1, fid);
+	    ResultSet rs = getSeatsLeftStatement.executeQuery();
+	    int result = rs.next() ? rs.getInt("seats_left") : 0;
+	    rs.close();
+	    return Math.max(0, result);
+	}
+
+	/**
+	 * Book the given number of seats on the given flight, which must have them left.
+	 */
+	private void reserveSeats(int fid, int seats) throws SQLException {
+	    reserveSeatsStatement.clearParameters();
+	    reserveSeatsStatement.setInt(1, fid);
+	    reserveSeatsStatement.setInt(2, seats);
+	    reserveSeatsStatement.setInt(3, seats);
+	    reserveSeatsStatement.executeUpdate();
+	}
+
+	/**
+	 * Allocate the given number of reservation IDs, returning the last one. Must be
+	 * called inside the batch's transaction.
+	 */
+	private int allocateReservationIds(int count) throws SQLException {
+	    addReservationIdsStatement.clearParameters();
+	    addReservationIdsStatement.setInt(1, count);
+	    addReservationIdsStatement.executeUpdate();
+	    ResultSet rs = getReservationIdStatement.executeQuery();
+	    rs.next();
+	    int result = rs.getInt("last_id");
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Return the next reservation ID. Must be called inside the booking's transaction
+	 * so that a failed booking gives its ID back.
+	 */
+	private int allocateReservationId() throws SQLException {
+	    incrementReservationIdStatement.executeUpdate();
+	    ResultSet rs = getReservationIdStatement.executeQuery();
+	    rs.next();
+	    int result = rs.getInt("last_id");
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Book a seat on each of the itinerary's flights, in fid order so that concurrent
+	 * bookings lock shared flights in the same order. Return true if every flight had
+	 * a seat left and false otherwise, in which case the caller must roll back.
+	 */
+	private boolean reserveSeats(Query.Itinerary itinerary) throws SQLException {
+	    int[] fids = new int[itinerary.flights.length];
+	    for (int i = 0; i < fids.length; i++) {
+		fids[i] = itinerary.flights[i].fid;
+	    }
+	    Arrays.sort(fids);
+
+	    for (int fid : fids) {
+		if (!reserveSeat(fid)) {
+		    return false;
+		}
+	    }
+	    return true;
+	}
+
+	/**
+	 * Book a seat on the given flight, returning true if it had one left.
+	 */
+	private boolean reserveSeat(int fid) throws SQLException {
+	    reserveSeatStatement.clearParameters();
+	    reserveSeatStatement.setInt(1, fid);
+	    return reserveSeatStatement.executeUpdate() == 1;
+	}
+
+	/**
+	 * Add a new reservation to the Reservations table.
+	 */
+	private void addReservation(int reservationId, String username, Query.Itinerary itinerary) throws SQLException {
+	    addReservationStatement.clearParameters();
+
+	    int paid = (itinerary.paid) ? 1 : 0;
+	    int canceled = (itinerary.canceled) ? 1 : 0;
+
+	    addReservationStatement.setInt(1, reservationId);
+	    addReservationStatement.setString(2, username);
+	    addReservationStatement.setInt(3, itinerary.price);
+	    addReservationStatement.setInt(4, paid);
+	    addReservationStatement.setInt(5, canceled);
+	    addReservationStatement.setInt(6, itinerary.flight1.fid);
+
+	    // Handle the case where there's no flight2.
+	    if (itinerary.isDirectFlight) {
+		addReservationStatement.setNull(7, Types.INTEGER);
+	    } else {
+		addReservationStatement.setInt(7, itinerary.flight2.fid);
+	    }
+
+	    // Flights after the second go in the ReservationLegs table.
+	    int extraLegs = Math.max(0, itinerary.flights.length - 2);
+	    addReservationStatement.setInt(8, extraLegs);
+	    addReservationStatement.executeUpdate();
+
+	    for (int i = 2; i < itinerary.flights.length; i++) {
+		addReservationLegStatement.clearParameters();
+		addReservationLegStatement.setInt(1, reservationId);
+		addReservationLegStatement.setInt(2, i + 1);
+		addReservationLegStatement.setInt(3, itinerary.flights[i].fid);
+		addReservationLegStatement.executeUpdate();
+	    }
+	}
+
+	/**
+	 * Return true if the given user has a flight booked on the given day and false otherwise.
+	 */
+	private boolean doesUserHaveReservation(String username, int itineraryDay) throws SQLException {
+	    return countReservationsOnDay(username, itineraryDay) == 1;
+	}
+
+	/**
+	 * Return the number of reservations the given user made on the given day, canceled
+	 * or not.
+	 */
+	private int countReservationsOnDay(String username, int day) throws SQLException {
+	    doesUserHaveReservationStatement.clearParameters();
+	    doesUserHaveReservationStatement.setString(1, username);
+	    doesUserHaveReservationStatement.setInt(2, day);
+	    ResultSet rs = doesUserHaveReservationStatement.executeQuery();
+	    rs.next();
+	    int result = rs.getInt("count");
+	    rs.close();
+	    return result;
+	}
+
+	@Override
+	public Payment pay(String username, int reservationId) throws SQLException {
+	    try {
+		return payReservation(username, reservationId);
+	    } finally {
+		wrote();
+	    }
+	}
+
+	private Payment payReservation(String username, int reservationId) throws SQLException {
+	    if (OPTIMISTIC) {
+		return payOptimistically(username, reservationId);
+	    }
+
+	    return transaction(payRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		// The user must be the one that booked this reservation.
+		if (!userHasUnpaidReservation(reservationId, username)) {
+		    return Payment.NOT_FOUND;
+		}
+
+		int reservationPrice = getReservationPrice(reservationId);
+		int userBalance = getUserBalance(username);
+		int newUserBalance = userBalance - reservationPrice;
+
+		if (newUserBalance < 0) {
+		    return Payment.insufficientFunds(userBalance, reservationPrice);
+		}
+
+		begin();
+
+		setUserBalance(username, newUserBalance);
+		setReservationPaid(reservationId, 1);
+
+		commit();
+		return Payment.paid(newUserBalance, reservationPrice);
+	    });
+	}
+
+	/**
+	 * Pay for the reservation without holding locks while reading it. The balance and the
+	 * reservation are then written in one short transaction that only succeeds if neither
+	 * row changed in between; if one did, the payment is read and tried again.
+	 */
+	private Payment payOptimistically(String username, int reservationId) throws SQLException {
+	    return transaction(payRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		VersionedReservation reservation = getVersionedReservation(reservationId, username);
+		if (reservation == null || reservation.paid) {
+		    return Payment.NOT_FOUND;
+		}
+
+		int newUserBalance = reservation.balance - reservation.price;
+		if (newUserBalance < 0) {
+		    return Payment.insufficientFunds(reservation.balance, reservation.price);
+		}
+
+		if (writeIfUnchanged(reservation, username, newUserBalance, setReservationPaidIfVersionStatement)) {
+		    return Payment.paid(newUserBalance, reservation.price);
+		}
+		return null;
+	    });
+	}
+
+	/**
+	 * Return the user's open reservation with the given ID along with the user's balance,
+	 * or null if the user has no such reservation.
+	 */
+	private VersionedReservation getVersionedReservation(int reservationId, String username) throws SQLException {
+	    getVersionedReservationStatement.clearParameters();
+	    getVersionedReservationStatement.setInt(1, reservationId);
+	    getVersionedReservationStatement.setString(2, username);
+	    try (ResultSet rs = getVersionedReservationStatement.executeQuery()) {
+		if (!rs.next()) {
+		    return null;
+		}
+		return new VersionedReservation(reservationId, rs.getInt("price"), rs.getInt("paid") == 1,
+			rs.getInt("version"), rs.getInt("balance"), rs.getInt("user_version"));
+	    }
+	}
+
+	/**
+	 * Set the user's balance and update the reservation with the given statement, in one
+	 * transaction, if neither row changed since the reservation was read. Return false,
+	 * having written nothing, if either did.
+	 *
+	 * @param reservationUpdate statement taking the reservation ID and version
+	 */
+	private boolean writeIfUnchanged(VersionedReservation reservation, String username, int newUserBalance,
+		PreparedStatement reservationUpdate) throws SQLException {
+	    begin();
+
+	    setUserBalanceIfVersionStatement.clearParameters();
+	    setUserBalanceIfVersionStatement.setInt(1, newUserBalance);
+	    setUserBalanceIfVersionStatement.setString(2, username);
+	    setUserBalanceIfVersionStatement.setInt(3, reservation.userVersion);
+
+	    reservationUpdate.clearParameters();
+	    reservationUpdate.setInt(1, reservation.id);
+	    reservationUpdate.setInt(2, reservation.version);
+
+	    if (setUserBalanceIfVersionStatement.executeUpdate() == 1 && reservationUpdate.executeUpdate() == 1) {
+		commit();
+		return true;
+	    }
+
+	    rollback();
+	    return false;
+	}
+
+	/**
+	 * Return true if the user hasn't paid the reservation and false otherwise.
+	 */
+	private boolean userHasUnpaidReservation(int reservationId, String username) throws SQLException {
+	    userHasUnpaidReservationStatement.clearParameters();
+	    userHasUnpaidReservationStatement.setInt(1, reservationId);
+	    userHasUnpaidReservationStatement.setString(2, username);
+	    ResultSet rs = userHasUnpaidReservationStatement.executeQuery();
+	    rs.next();
+	    boolean result = rs.getInt("count") == 1;
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Return the reservation's price.
+	 */
+	private int getReservationPrice(int reservationId) throws SQLException {
+	    getReservationPriceStatement.setInt(1, reservationId);
+	    ResultSet rs = getReservationPriceStatement.executeQuery();
+	    rs.next();
+	    int result = rs.getInt("price");
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Return the user's account balance.
+	 */
+	private int getUserBalance(String username) throws SQLException {
+	    getUserBalanceStatement.setString(1, username);
+	    ResultSet rs = getUserBalanceStatement.executeQuery();
+	    rs.next();
+	    int result = rs.getInt("balance");
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Set the user's account balance to the given amount.
+	 */
+	private void setUserBalance(String username, int amount) throws SQLException {
+	    setUserBalanceStatement.clearParameters();
+	    setUserBalanceStatement.setInt(1, amount);
+	    setUserBalanceStatement.setString(2, username);
+	    setUserBalanceStatement.executeUpdate();
+	}
+
+	/**
+	 * Set the reservation's paid attribute to the given state:
+	 * true if 1 and false if 0.
+	 */
+	private void setReservationPaid(int reservationId, int state) throws SQLException {
+	    setReservationPaidStatement.clearParameters();
+	    setReservationPaidStatement.setInt(1, state);
+	    setReservationPaidStatement.setInt(2, reservationId);
+	    setReservationPaidStatement.executeUpdate();
+	}
+
+	@Override
+	public List<Query.Itinerary> getReservations(String username) throws SQLException {
+	    List<int[]> reservations = read(true, reservationsRetry, READ_ISOLATION, () -> getOpenReservations(username));
+
+	    // Flights never change, so those neither cached nor in the route index are
+	    // looked up apart, on any replica.
+	    RouteIndex index = routeIndex;
+	    for (int[] reservation : reservations) {
+		for (int fid : reservation) {
+		    if (flightCache.get(fid) == null && (index == null || index.getFlight(fid) == null)) {
+			return read(false, reservationsRetry, READ_ISOLATION, () -> getItineraries(reservations));
+		    }
+		}
+	    }
+	    return getItineraries(reservations);
+	}
+
+	/**
+	 * Return the fids of the flights of each open reservation held by the user, in
+	 * reservation ID order.
+	 */
+	private List<int[]> getOpenReservations(String username) throws SQLException {
+	    getOpenReservationsStatement.clearParameters();
+	    getOpenReservationsStatement.setString(1, username.toLowerCase());
+	    ResultSet rs = getOpenReservationsStatement.executeQuery();
+
+	    // Read every reservation before looking up its flights. A reservation of more
+	    // than two flights comes in a row per extra leg, in leg order.
+	    List<int[]> reservations = new ArrayList<>();
+	    int[] reservation = null;
+	    int reservationId = 0;
+	    while (rs.next()) {
+		int id = rs.getInt("id");
+		if (reservation == null || id != reservationId) {
+		    int fid1 = rs.getInt("fid1");
+		    int fid2 = rs.getInt("fid2");
+		    int extraLegs = rs.getInt("extra_legs");
+
+		    reservation = (fid2 == 0) ? new int[] {fid1} : new int[2 + extraLegs];
+		    if (fid2 != 0) {
+			reservation[0] = fid1;
+			reservation[1] = fid2;
+		    }
+		    reservationId = id;
+		    reservations.add(reservation);
+		}
+
+		int leg = rs.getInt("leg");
+		if (!rs.wasNull()) {
+		    reservation[leg - 1] = rs.getInt("fid");
+		}
+	    }
+	    rs.close();
+	    return reservations;
+	}
+
+	/**
+	 * Return the given reservations' flights as itineraries. Unless every flight is
+	 * cached, a connection must be bound.
+	 */
+	private List<Query.Itinerary> getItineraries(List<int[]> reservations) throws SQLException {
+	    // Fetch the flights missing from the cache in bulk.
+	    int numFids = 0;
+	    for (int[] reservation : reservations) {
+		numFids += reservation.length;
+	    }
+	    int[] fids = new int[numFids];
+	    int n = 0;
+	    for (int[] reservation : reservations) {
+		for (int fid : reservation) {
+		    fids[n++] = fid;
+		}
+	    }
+	    cacheFlights(fids);
+
+	    List<Query.Itinerary> itineraries = new ArrayList<>();
+	    for (int[] reservation : reservations) {
+		Query.Flight[] flights = new Query.Flight[reservation.length];
+		for (int i = 0; i < flights.length; i++) {
+		    flights[i] = getFlight(reservation[i]);
+		}
+
+		Query.Itinerary itinerary = new Query.Itinerary(flights, flights[0].time);
+		itineraries.add(itinerary);
+	    }
+	    return itineraries;
+	}
+
+	/**
+	 * Add the given flights to the flight cache, from the route index when possible and
+	 * otherwise with as few queries as possible.
+	 */
+	private void cacheFlights(int[] fids) throws SQLException {
+	    int[] misses = new int[fids.length];
+	    int numMisses = 0;
+	    for (int fid : fids) {
+		if (flightCache.get(fid) != null) {
+		    continue;
+		}
+		Query.Flight f = (routeIndex == null) ? null : routeIndex.getFlight(fid);
+		if (f != null) {
+		    flightCache.put(f);
+		} else {
+		    misses[numMisses++] = fid;
+		}
+	    }
+
+	    for (int start = 0; start < numMisses; start += MAX_BULK_FLIGHTS) {
+		int end = Math.min(numMisses, start + MAX_BULK_FLIGHTS);
+
+		// Round the IN list up to a power of two so that only a few distinct
+		// statements are ever prepared, repeating the last fid as padding.
+		int size = Integer.highestOneBit(end - start - 1) << 1;
+		size = Math.max(1, size);
+		StringBuilder sql = new StringBuilder(GET_FLIGHTS).append('(');
+		for (int i = 0; i < size; i++) {
+		    sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(");");
+
+		PreparedStatement statement = pooled.prepare(sql.toString());
+		statement.clearParameters();
+		for (int i = 0; i < size; i++) {
+		    statement.setInt(i + 1, misses[Math.min(start + i, end - 1)]);
+		}
+
+		ResultSet rs = statement.executeQuery();
+		while (rs.next()) {
+		    flightCache.put(readFlight(rs, rs.getInt("fid")));
+		}
+		rs.close();
+	    }
+	}
+
+	/**
+	 * Return the flight's full information.
+	 */
+	private Query.Flight getFlight(int fid) throws SQLException {
+	    Query.Flight f = flightCache.get(fid);
+	    if (f != null) {
+		return f;
+	    }
+
+	    getFlightStatement.clearParameters();
+	    getFlightStatement.setInt(1, fid);
+	    ResultSet rs = getFlightStatement.executeQuery();
+
+	    rs.next();
+	    f = readFlight(rs, fid);
+	    rs.close();
+
+	    flightCache.put(f);
+	    return f;
+	}
+
+	/**
+	 * Return the flight in the current row of the given result set.
+	 */
+	private Query.Flight readFlight(ResultSet rs, int fid) throws SQLException {
+	    int dayOfMonth = rs.getInt("day_of_month");
+	    String carrierId = rs.getString("carrier_id");
+	    String flightNum = rs.getString("flight_num");
+	    String originCity = rs.getString("origin_city");
+	    String destCity = rs.getString("dest_city");
+	    int time = rs.getInt("actual_time");
+	    int capacity = rs.getInt("capacity");
+	    int price = rs.getInt("price");
+
+	    return new Query.Flight(fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity, price);
+	}
+
+	@Override
+	public boolean cancel(String username, int reservationId) throws SQLException {
+	    try {
+		return cancelReservation(username, reservationId);
+	    } finally {
+		wrote();
+	    }
+	}
+
+	private boolean cancelReservation(String username, int reservationId) throws SQLException {
+	    if (OPTIMISTIC) {
+		return cancelOptimistically(username, reservationId);
+	    }
+
+	    return transaction(cancelRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		if (!reservationMatchesUser(reservationId, username)) {
+		    return Boolean.FALSE;
+		}
+
+		begin();
+
+		int price = getReservationPrice(reservationId);
+		int userBalance = getUserBalance(username);
+		int newUserBalance = userBalance + price;
+		int canceled = 1;
+		setUserBalance(username, newUserBalance);
+		setReservationCanceled(reservationId, canceled);
+
+		commit();
+		return Boolean.TRUE;
+	    });
+	}
+
+	/**
+	 * Cancel the reservation without holding locks while reading it, like
+	 * payOptimistically(), retrying if the user or the reservation changed in between.
+	 */
+	private boolean cancelOptimistically(String username, int reservationId) throws SQLException {
+	    return transaction(cancelRetry, Connection.TRANSACTION_SERIALIZABLE, () -> {
+		VersionedReservation reservation = getVersionedReservation(reservationId, username);
+		if (reservation == null) {
+		    return Boolean.FALSE;
+		}
+
+		int newUserBalance = reservation.balance + reservation.price;
+		if (writeIfUnchanged(reservation, username, newUserBalance, setReservationCanceledIfVersionStatement)) {
+		    return Boolean.TRUE;
+		}
+		return null;
+	    });
+	}
+
+	/**
+	 * Set the reservation's canceled attribute to the given state:
+	 * true if 1 and false if 0.
+	 */
+	private void setReservationCanceled(int reservationId, int state) throws SQLException {
+	    setReservationCanceledStatement.clearParameters();
+	    setReservationCanceledStatement.setInt(1, state);
+	    setReservationCanceledStatement.setInt(2, reservationId);
+	    setReservationCanceledStatement.executeUpdate();
+	}
+
+	/**
+	 * Return true if the user has reserved the reservation and false otherwise.
+	 */
+	private boolean reservationMatchesUser(int reservationId, String username) throws SQLException {
+	    reservationMatchesUserStatement.clearParameters();
+	    reservationMatchesUserStatement.setInt(1, reservationId);
+	    reservationMatchesUserStatement.setString(2, username);
+	    ResultSet rs = reservationMatchesUserStatement.executeQuery();
+	    rs.next();
+	    boolean result = rs.getInt("count") > 0;
+	    rs.close();
+	    return result;
+	}
+
+	/**
+	 * Start a transaction on the bound connection.
+	 */
+	private void begin() throws SQLException {
+	    if (!inTransaction) {
+		conn.setAutoCommit(false);
+		inTransaction = true;
+	    }
+	}
+
+	/**
+	 * Commit the current transaction and go back to committing each statement.
+	 */
+	private void commit() throws SQLException {
+	    conn.commit();
+	    conn.setAutoCommit(true);
+	    inTransaction = false;
+	}
+
+	/**
+	 * Roll back the current transaction and go back to committing each statement.
+	 */
+	private void rollback() throws SQLException {
+	    // Whatever happens, the connection must not stay in the transaction.
+	    inTransaction = false;
+	    try {
+		conn.rollback();
+	    } finally {
+		conn.setAutoCommit(true);
+	    }
+	}
+
+	/**
+	 * Throw IllegalStateException if transaction not completely complete, rollback.
+	 *
+	 * The session knows whether it left a transaction open without asking the server;
+	 * only every TRANCOUNT_SAMPLE-th attempt also checks @@TRANCOUNT.
+	 */
+	private void checkDanglingTransaction() {
+	    // A read snapshot stays open until the whole read-only transaction is done.
+	    if (inReadSnapshot) {
+		return;
+	    }
+
+	    try {
+		if (inTransaction) {
+		    rollback();
+		    throw new IllegalStateException("Transaction not fully commit/rollback");
+		}
+
+		if (TRANCOUNT_SAMPLE <= 0 || ++attempts % TRANCOUNT_SAMPLE != 0) {
+		    return;
+		}
+
+		try (ResultSet rs = tranCountStatement.executeQuery()) {
+		    rs.next();
+		    int count = rs.getInt("tran_count");
+		    if (count > 0) {
+			// The transaction was opened without begin(), so take it over to roll it back.
+			begin();
+			rollback();
+			throw new IllegalStateException(
+				"Transaction not fully commit/rollback. Number of transaction in process: " + count);
+		    }
+		}
+	    } catch (SQLException e) {
+		throw new IllegalStateException("Database error", e);
+	    }
+	}
+
+	private boolean isDeadLock(SQLException ex) {
+	    return ex.getErrorCode() == 1205;
+	}
+    }
+
+    /**
+     * A reservation and its user's balance as read by an optimistic transaction, with the
+     * versions the rows had then.
+     */
+    private static class VersionedReservation {
+	final int id;
+	final int price;
+	final boolean paid;
+	final int version;
+	final int balance;
+	final int userVersion;
+
+	VersionedReservation(int id, int price, boolean paid, int version, int balance, int userVersion) {
+	    this.id = id;
+	    this.price = price;
+	    this.paid = paid;
+	    this.version = version;
+	    this.balance = balance;
+	    this.userVersion = userVersion;
+	}
+    }
+}
@@ -0,0 +1,665 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Keeps the Flights application's data in memory and in the database, with a
+ * write-ahead journal in between.
+ *
+ * Transactions are decided by an InMemoryStorage restored from the database when the
+ * storage opens. Every new user, booking, payment and cancellation is appended to a
+ * ReservationJournal before it takes effect, and the session returns once the journal
+ * has it on disk, so committing costs a local append and a share of one fsync instead
+ * of round trips to the database. A writer thread applies the journal to the Users,
+ * Reservations, ReservationLegs, BookedSeats and ReservationIds tables in order, many
+ * records per transaction, and records the position it applied up to in the
+ * JournalCheckpoint table in the same transaction, so every record is applied exactly
+ * once. Opening the storage first applies whatever the journal holds past the
+ * checkpoint, which recovers every change acknowledged before a crash.
+ *
+ * The database lags behind the journal, and while the storage is open it must be the
+ * only one changing users and reservations in the database.
+ */
+public class JournaledStorage implements Storage {
+    // Let new journal segments be this many bytes.
+    private static final int SEGMENT_SIZE = Integer.getInteger("flightapp.journal_segment_mb", 64) << 20;
+
+    // Let the writer apply at most this many records in one transaction.
+    private static final int BATCH_SIZE = Integer.getInteger("flightapp.journal_batch_size", 256);
+
+    // Types of the journal's records.
+    private static final byte CLEARED = 1;
+    private static final byte USER_CREATED = 2;
+    private static final byte BOOKED = 3;
+    private static final byte PAID = 4;
+    private static final byte CANCELED = 5;
+
+    // Used to find where to resume applying the journal.
+    private static final String GET_CHECKPOINT = ""
+	+ "SELECT position"
+	+ "  FROM JournalCheckpoint"
+	+ " WHERE id = 1;";
+
+    private static final String SET_CHECKPOINT = ""
+	+ "UPDATE JournalCheckpoint"
+	+ "   SET position = ?"
+	+ " WHERE id = 1;";
+
+    // Used to restore the data into memory.
+    private static final String GET_USERS = ""
+	+ "SELECT username, salt, hash, balance"
+	+ "  FROM Users;";
+
+    private static final String GET_RESERVATIONS = ""
+	+ "SELECT id, username, price, paid, canceled, fid1, fid2, extra_legs"
+	+ "  FROM Reservations"
+	+ " ORDER BY id;";
+
+    private static final String GET_RESERVATION_LEGS = ""
+	+ "SELECT id, leg, fid"
+	+ "  FROM ReservationLegs;";
+
+    private static final String GET_BOOKED_SEATS = ""
+	+ "SELECT fid, seats"
+	+ "  FROM BookedSeats;";
+
+    private static final String GET_LAST_RESERVATION_ID = ""
+	+ "SELECT last_id"
+	+ "  FROM ReservationIds"
+	+ " WHERE id = 1;";
+
+    // Used to apply the journal.
+    private static final String CLEAR_RESERVATION_LEGS = ""
+	+ "DELETE FROM ReservationLegs;";
+
+    private static final String CLEAR_RESERVATIONS = ""
+	+ "DELETE FROM Reservations;";
+
+    private static final String CLEAR_USERS = ""
+	+ "DELETE FROM Users;";
+
+    private static final String CLEAR_BOOKED_SEATS = ""
+	+ "DELETE FROM BookedSeats;";
+
+    private static final String CLEAR_RESERVATION_IDS = ""
+	+ "UPDATE ReservationIds"
+	+ "   SET last_id = 0;";
+
+    private static final String INSERT_USER = ""
+	+ "INSERT INTO Users (username, salt, hash, balance)"
+	+ " VALUES (?, ?, ?, ?);";
+
+    private static final String ADD_RESERVATION = ""
+	+ "INSERT INTO Reservations (id, username, price, paid, canceled, fid1, fid2, extra_legs)"
+	+ " VALUES (?, ?, ?, 0, 0, ?, ?, ?);";
+
+    private static final String ADD_RESERVATION_LEG = ""
+	+ "INSERT INTO ReservationLegs (id, leg, fid)"
+	+ " VALUES (?, ?, ?);";
+
+    // The journal only holds bookings the storage found seats for.
+    private static final String RESERVE_SEAT = ""
+	+ "MERGE INTO BookedSeats AS b"
+	+ " USING (SELECT ? AS fid) AS f"
+	+ "    ON b.fid = f.fid"
+	+ "  WHEN MATCHED THEN"
+	+ "       UPDATE SET seats = b.seats + 1"
+	+ "  WHEN NOT MATCHED THEN"
+	+ "       INSERT (fid, seats) VALUES (f.fid, 1);";
+
+    // Bookings of different users may reach the journal out of ID order.
+    private static final String SET_LAST_RESERVATION_ID = ""
+	+ "UPDATE ReservationIds"
+	+ "   SET last_id = ?"
+	+ " WHERE id = 1"
+	+ "   AND last_id < ?;";
+
+    private static final String SET_RESERVATION_PAID = ""
+	+ "UPDATE Reservations"
+	+ "   SET paid = 1, version = version + 1"
+	+ " WHERE id = ?;";
+
+    private static final String SET_RESERVATION_CANCELED = ""
+	+ "UPDATE Reservations"
+	+ "   SET canceled = 1, version = version + 1"
+	+ " WHERE id = ?;";
+
+    private static final String SET_USER_BALANCE = ""
+	+ "UPDATE Users"
+	+ "   SET balance = ?, version = version + 1"
+	+ " WHERE username = ?;";
+
+    private final ConnectionPool pool;
+    private final InMemoryStorage memory;
+    private final ReservationJournal journal;
+    private final Thread writer;
+
+    // Let applied be the position up to which the journal is in the database. Only
+    // the writer uses it once the storage is open.
+    private long applied;
+
+    private volatile boolean closed;
+
+    private JournaledStorage(ConnectionPool pool, InMemoryStorage memory, ReservationJournal journal, long applied) {
+	this.pool = pool;
+	this.memory = memory;
+	this.journal = journal;
+	this.applied = applied;
+	this.writer = new Thread(this::write, "flightapp-journal-writer");
+	this.writer.setDaemon(true);
+	memory.setListener(new Appender());
+    }
+
+    /**
+     * Open the storage of the database of the given pool with the journal in the given
+     * directory, applying to the database whatever the journal holds that it doesn't.
+     * The storage closes the pool when it is closed.
+     */
+    public static JournaledStorage open(ConnectionPool pool, Path dir) throws SQLException, IOException {
+	ConnectionPool.PooledConnection pooled = pool.borrow();
+	try {
+	    long checkpoint;
+	    try (ResultSet rs = pooled.prepare(GET_CHECKPOINT).executeQuery()) {
+		if (!rs.next()) {
+		    throw new SQLException("JournalCheckpoint has no row");
+		}
+		checkpoint = rs.getLong(1);
+	    }
+
+	    ReservationJournal journal = ReservationJournal.open(dir, SEGMENT_SIZE, checkpoint);
+	    try {
+		long applied = Math.max(checkpoint, journal.first());
+		ReservationJournal.Reader reader = journal.reader(applied);
+		while (applyBatch(pooled, reader, journal.synced()) > 0) {
+		    applied = reader.position();
+		}
+		journal.release(applied);
+
+		JournaledStorage storage = new JournaledStorage(pool, restore(pooled), journal, applied);
+		storage.writer.start();
+		return storage;
+	    } catch (SQLException | IOException | RuntimeException e) {
+		journal.close();
+		throw e;
+	    }
+	} finally {
+	    pool.release(pooled);
+	}
+    }
+
+    /**
+     * Return the storage of the database of dbconn.properties, with the journal in the
+     * directory named by the flightapp.journal_dir system property, "journal" by default.
+     */
+    public static JournaledStorage fromSystemProperties() throws SQLException, IOException {
+	ConnectionPool pool = ConnectionPool.fromDbConn();
+	try {
+	    return open(pool, Paths.get(System.getProperty("flightapp.journal_dir", "journal")));
+	} catch (SQLException | IOException | RuntimeException e) {
+	    pool.close();
+	    throw e;
+	}
+    }
+
+    /**
+     * Return an in-memory storage holding the data of the database.
+     */
+    private static InMemoryStorage restore(ConnectionPool.PooledConnection pooled) throws SQLException {
+	InMemoryStorage memory = new InMemoryStorage(RouteIndex.load(pooled.getConnection()));
+
+	try (ResultSet rs = pooled.prepare(GET_USERS).executeQuery()) {
+	    while (rs.next()) {
+		memory.restoreUser(rs.getString(1), rs.getBytes(2), rs.getBytes(3), rs.getInt(4));
+	    }
+	}
+
+	Map<Integer, SortedMap<Integer, Integer>> legs = new HashMap<>();
+	try (ResultSet rs = pooled.prepare(GET_RESERVATION_LEGS).executeQuery()) {
+	    while (rs.next()) {
+		legs.computeIfAbsent(rs.getInt(1), id -> new TreeMap<>()).put(rs.getInt(2), rs.getInt(3));
+	    }
+	}
+
+	try (ResultSet rs = pooled.prepare(GET_RESERVATIONS).executeQuery()) {
+	    while (rs.next()) {
+		int id = rs.getInt(1);
+		List<Integer> fids = new ArrayList<>();
+		fids.add(rs.getInt(6));
+		int fid2 = rs.getInt(7);
+		if (!rs.wasNull()) {
+		    fids.add(fid2);
+		}
+		if (rs.getInt(8) > 0) {
+		    fids.addAll(legs.getOrDefault(id, Collections.emptySortedMap()).values());
+		}
+
+		Query.Flight[] flights = new Query.Flight[fids.size()];
+		for (int i = 0; i < flights.length; i++) {
+		    flights[i] = memory.getFlight(fids.get(i));
+		    if (flights[i] == null) {
+			throw new SQLException("Reservation " + id + " is of unknown flight " + fids.get(i));
+		    }
+		}
+		memory.restoreReservation(id, rs.getString(2), flights, rs.getInt(3), rs.getInt(4) == 1,
+			rs.getInt(5) == 1);
+	    }
+	}
+
+	try (ResultSet rs = pooled.prepare(GET_BOOKED_SEATS).executeQuery()) {
+	    while (rs.next()) {
+		memory.restoreBookedSeats(rs.getInt(1), rs.getInt(2));
+	    }
+	}
+
+	try (ResultSet rs = pooled.prepare(GET_LAST_RESERVATION_ID).executeQuery()) {
+	    if (rs.next()) {
+		memory.restoreLastReservationId(rs.getInt(1));
+	    }
+	}
+	return memory;
+    }
+
+    @Override
+    public Session openSession() {
+	return new JournaledSession(memory.openSession());
+    }
+
+    /**
+     * Stop taking changes, apply the rest of the journal to the database if it is
+     * reachable, and close the journal and the pool.
+     */
+    @Override
+    public void close() {
+	// Flushes what was appended before the writer's final pass.
+	journal.close();
+	closed = true;
+	writer.interrupt();
+	boolean interrupted = false;
+	while (writer.isAlive()) {
+	    try {
+		writer.join();
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+	pool.close();
+    }
+
+    /**
+     * Apply the journal to the database as records reach the disk, until the storage is
+     * closed. A failed batch is retried, after a pause, until it succeeds.
+     */
+    private void write() {
+	long backoffMillis = 0;
+	ReservationJournal.Reader reader = journal.reader(applied);
+	while (true) {
+	    long synced;
+	    if (closed) {
+		synced = journal.synced();
+		if (applied == synced || backoffMillis > 0) {
+		    // What isn't applied now is applied when the storage opens again.
+		    return;
+		}
+	    } else {
+		try {
+		    if (backoffMillis > 0) {
+			Thread.sleep(backoffMillis);
+		    }
+		    synced = journal.awaitSynced(applied, 1000);
+		} catch (InterruptedException e) {
+		    continue;
+		}
+	    }
+	    if (synced <= applied) {
+		continue;
+	    }
+
+	    ConnectionPool.PooledConnection pooled = null;
+	    try {
+		pooled = pool.borrow();
+		while (applyBatch(pooled, reader, synced) > 0) {
+		    applied = reader.position();
+		}
+		journal.release(applied);
+		backoffMillis = 0;
+	    } catch (SQLException | IOException | RuntimeException e) {
+		e.printStackTrace();
+		reader = journal.reader(applied);
+		backoffMillis = Math.min(Math.max(2 * backoffMillis, 100), 5000);
+	    } finally {
+		if (pooled != null) {
+		    pool.release(pooled);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Apply up to BATCH_SIZE records of the given reader before the given position to the
+     * database, along with the new checkpoint, in one transaction. Return the number of
+     * records applied; the reader is left past them, or anywhere if this throws.
+     */
+    private static int applyBatch(ConnectionPool.PooledConnection pooled, ReservationJournal.Reader reader,
+	    long limit) throws SQLException, IOException {
+	Connection conn = pooled.getConnection();
+	conn.setAutoCommit(false);
+	try {
+	    int n = 0;
+	    byte[] record;
+	    while (n < BATCH_SIZE && (record = reader.next(limit)) != null) {
+		apply(pooled, record);
+		n++;
+	    }
+	    if (n > 0) {
+		PreparedStatement statement = pooled.prepare(SET_CHECKPOINT);
+		statement.setLong(1, reader.position());
+		statement.executeUpdate();
+	    }
+	    conn.commit();
+	    return n;
+	} catch (SQLException | IOException | RuntimeException e) {
+	    conn.rollback();
+	    throw e;
+	} finally {
+	    conn.setAutoCommit(true);
+	}
+    }
+
+    /**
+     * Apply the given record to the database.
+     */
+    private static void apply(ConnectionPool.PooledConnection pooled, byte[] record) throws SQLException, IOException {
+	DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+	byte type = in.readByte();
+	PreparedStatement statement;
+	switch (type) {
+	    case CLEARED:
+		pooled.prepare(CLEAR_RESERVATION_LEGS).executeUpdate();
+		pooled.prepare(CLEAR_RESERVATIONS).executeUpdate();
+		pooled.prepare(CLEAR_USERS).executeUpdate();
+		pooled.prepare(CLEAR_BOOKED_SEATS).executeUpdate();
+		pooled.prepare(CLEAR_RESERVATION_IDS).executeUpdate();
+		break;
+
+	    case USER_CREATED:
+		statement = pooled.prepare(INSERT_USER);
+		statement.setString(1, in.readUTF());
+		statement.setBytes(2, readBytes(in));
+		statement.setBytes(3, readBytes(in));
+		statement.setInt(4, in.readInt());
+		statement.executeUpdate();
+		break;
+
+	    case BOOKED: {
+		int id = in.readInt();
+		String username = in.readUTF();
+		int price = in.readInt();
+		int[] fids = new int[in.readUnsignedByte()];
+		for (int i = 0; i < fids.length; i++) {
+		    fids[i] = in.readInt();
+		}
+
+		statement = pooled.prepare(ADD_RESERVATION);
+		statement.setInt(1, id);
+		statement.setString(2, username);
+		statement.setInt(3, price);
+		statement.setInt(4, fids[0]);
+		if (fids.length > 1) {
+		    statement.setInt(5, fids[1]);
+		} else {
+		    statement.setNull(5, Types.INTEGER);
+		}
+		statement.setInt(6, Math.max(0, fids.length - 2));
+		statement.executeUpdate();
+
+		for (int i = 2; i < fids.length; i++) {
+		    statement = pooled.prepare(ADD_RESERVATION_LEG);
+		    statement.setInt(1, id);
+		    statement.setInt(2, i + 1);
+		    statement.setInt(3, fids[i]);
+		    statement.executeUpdate();
+		}
+		for (int fid : fids) {
+		    statement = pooled.prepare(RESERVE_SEAT);
+		    statement.setInt(1, fid);
+		    statement.executeUpdate();
+		}
+
+		statement = pooled.prepare(SET_LAST_RESERVATION_ID);
+		statement.setInt(1, id);
+		statement.setInt(2, id);
+		statement.executeUpdate();
+		break;
+	    }
+
+	    case PAID:
+	    case CANCELED: {
+		int id = in.readInt();
+		String username = in.readUTF();
+		int balance = in.readInt();
+
+		statement = pooled.prepare(type == PAID ? SET_RESERVATION_PAID : SET_RESERVATION_CANCELED);
+		statement.setInt(1, id);
+		statement.executeUpdate();
+
+		statement = pooled.prepare(SET_USER_BALANCE);
+		statement.setInt(1, balance);
+		statement.setString(2, username);
+		statement.executeUpdate();
+		break;
+	    }
+
+	    default:
+		throw new IOException("Unknown journal record type " + type);
+	}
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+	byte[] bytes = new byte[in.readUnsignedShort()];
+	in.readFully(bytes);
+	return bytes;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+	out.writeShort(bytes.length);
+	out.write(bytes);
+    }
+
+    /**
+     * Appends the changes of the in-memory storage to the journal.
+     */
+    private class Appender implements InMemoryStorage.Listener {
+	@Override
+	public void cleared() {
+	    append(out -> out.writeByte(CLEARED));
+	}
+
+	@Override
+	public void userCreated(String username, byte[] salt, byte[] hash, int balance) {
+	    append(out -> {
+		out.writeByte(USER_CREATED);
+		out.writeUTF(username);
+		writeBytes(out, salt);
+		writeBytes(out, hash);
+		out.writeInt(balance);
+	    });
+	}
+
+	@Override
+	public void booked(int reservationId, String username, Query.Itinerary itinerary) {
+	    append(out -> {
+		out.writeByte(BOOKED);
+		out.writeInt(reservationId);
+		out.writeUTF(username);
+		out.writeInt(itinerary.price);
+		out.writeByte(itinerary.flights.length);
+		for (Query.Flight flight : itinerary.flights) {
+		    out.writeInt(flight.fid);
+		}
+	    });
+	}
+
+	@Override
+	public void paid(int reservationId, String username, int balance) {
+	    append(out -> {
+		out.writeByte(PAID);
+		out.writeInt(reservationId);
+		out.writeUTF(username);
+		out.writeInt(balance);
+	    });
+	}
+
+	@Override
+	public void canceled(int reservationId, String username, int balance) {
+	    append(out -> {
+		out.writeByte(CANCELED);
+		out.writeInt(reservationId);
+		out.writeUTF(username);
+		out.writeInt(balance);
+	    });
+	}
+    }
+
+    /**
+     * Writes a record of the journal.
+     */
+    private interface RecordWriter {
+	void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Append the record the given writer writes to the journal.
+     *
+     * @throws UncheckedIOException if it couldn't be appended
+     */
+    private void append(RecordWriter writer) {
+	try {
+	    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+	    DataOutputStream out = new DataOutputStream(bytes);
+	    writer.write(out);
+	    out.flush();
+	    journal.append(bytes.toByteArray());
+	} catch (IOException e) {
+	    throw new UncheckedIOException(e);
+	}
+    }
+
+    /**
+     * A session of the in-memory storage whose changes return once they are on disk.
+     */
+    private class JournaledSession implements Storage.Session {
+	private final Storage.Session session;
+
+	JournaledSession(Storage.Session session) {
+	    this.session = session;
+	}
+
+	@Override
+	public void clear() throws SQLException {
+	    try {
+		session.clear();
+	    } catch (UncheckedIOException e) {
+		throw new SQLException("Could not write the journal", e.getCause());
+	    }
+	    sync();
+	}
+
+	@Override
+	public Credentials getCredentials(String username) throws SQLException {
+	    return session.getCredentials(username);
+	}
+
+	@Override
+	public boolean createUser(String username, byte[] salt, byte[] hash, int balance) throws SQLException {
+	    boolean created;
+	    try {
+		created = session.createUser(username, salt, hash, balance);
+	    } catch (UncheckedIOException e) {
+		throw new SQLException("Could not write the journal", e.getCause());
+	    }
+	    sync();
+	    return created;
+	}
+
+	@Override
+	public void search(String origin, String destination, boolean directOnly, int day, int count,
+		List<Query.Itinerary> directs, List<Query.Itinerary> indirects) throws SQLException {
+	    session.search(origin, destination, directOnly, day, count, directs, indirects);
+	}
+
+	@Override
+	public int book(String username, Query.Itinerary itinerary) throws SQLException {
+	    int result;
+	    try {
+		result = session.book(username, itinerary);
+	    } catch (UncheckedIOException e) {
+		throw new SQLException("Could not write the journal", e.getCause());
+	    }
+	    sync();
+	    return result;
+	}
+
+	@Override
+	public Payment pay(String username, int reservationId) throws SQLException {
+	    Payment payment;
+	    try {
+		payment = session.pay(username, reservationId);
+	    } catch (UncheckedIOException e) {
+		throw new SQLException("Could not write the journal", e.getCause());
+	    }
+	    sync();
+	    return payment;
+	}
+
+	@Override
+	public List<Query.Itinerary> getReservations(String username) throws SQLException {
+	    return session.getReservations(username);
+	}
+
+	@Override
+	public boolean cancel(String username, int reservationId) throws SQLException {
+	    boolean canceled;
+	    try {
+		canceled = session.cancel(username, reservationId);
+	    } catch (UncheckedIOException e) {
+		throw new SQLException("Could not write the journal", e.getCause());
+	    }
+	    sync();
+	    return canceled;
+	}
+
+	@Override
+	public int retries() {
+	    return session.retries();
+	}
+
+	@Override
+	public int deadlocks() {
+	    return session.deadlocks();
+	}
+
+	@Override
+	public void close() throws SQLException {
+	    session.close();
+	}
+
+	/**
+	 * Wait until whatever this session's thread appended to the journal is on disk.
+	 * Reading what another session has changed doesn't wait for it, as with an
+	 * asynchronous commit.
+	 */
+	private void sync() throws SQLException {
+	    try {
+		journal.sync();
+	    } catch (IOException e) {
+		throw new SQLException("Could not write the journal", e);
+	    }
+	}
+    }
+}
@@ -0,0 +1,157 @@
+package flightapp;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/**
+ * The registry of transaction metrics for the whole process.
+ *
+ * Every transaction's metrics are exported over JMX as
+ * flightapp:type=Transaction,name=[transaction], and its retry policy, if it retries,
+ * as flightapp:type=RetryPolicy,name=[transaction]. The password hasher and the
+ * search cache are exported as flightapp:type=PasswordHasher and
+ * flightapp:type=SearchCache. Set
+ * -Dflightapp.metrics_dump_seconds=[seconds] to also print all of them to standard
+ * error at that interval.
+ */
+public class Metrics {
+    // Let transactions map transaction names to their metrics, sorted by name.
+    private static final Map<String, TransactionMetrics> transactions = new ConcurrentSkipListMap<>();
+
+    // Let retryPolicies map transaction names to their retry policies, sorted by name.
+    private static final Map<String, RetryPolicy> retryPolicies = new ConcurrentSkipListMap<>();
+
+    // Let hasher be the password hasher of every session, once made, and searchCache
+    // the search cache, once made unless searchCacheMade says it is disabled. Guarded by
+    // Metrics.class.
+    private static PasswordHasher hasher;
+    private static SearchCache searchCache;
+    private static boolean searchCacheMade;
+
+    private static final long DUMP_SECONDS = Long.getLong("flightapp.metrics_dump_seconds", 0L);
+
+    static {
+	if (DUMP_SECONDS > 0) {
+	    ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+		Thread thread = new Thread(task, "flightapp-metrics");
+		thread.setDaemon(true);
+		return thread;
+	    });
+	    dumper.scheduleAtFixedRate(() -> System.err.print(dump()), DUMP_SECONDS, DUMP_SECONDS,
+		    TimeUnit.SECONDS);
+	}
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Return the metrics of the named transaction, registering them the first time.
+     *
+     * @param name          transaction name
+     * @param successPrefix start of every successful response of the transaction
+     */
+    public static TransactionMetrics transaction(String name, String successPrefix) {
+	return transactions.computeIfAbsent(name, n -> {
+	    TransactionMetrics metrics = new TransactionMetrics(n, successPrefix);
+	    register(metrics, "Transaction", n);
+	    return metrics;
+	});
+    }
+
+    /**
+     * Return the retry policy of the named transaction, configured by the system
+     * properties and registered the first time.
+     */
+    public static RetryPolicy retryPolicy(String name) {
+	return retryPolicies.computeIfAbsent(name, n -> {
+	    RetryPolicy policy = RetryPolicy.fromSystemProperties(n);
+	    register(policy, "RetryPolicy", n);
+	    return policy;
+	});
+    }
+
+    /**
+     * Return the password hasher of every session, configured by the system properties
+     * and registered the first time.
+     */
+    public static synchronized PasswordHasher passwordHasher() {
+	if (hasher == null) {
+	    hasher = PasswordHasher.fromSystemProperties();
+	    register(hasher, "flightapp:type=PasswordHasher");
+	}
+	return hasher;
+    }
+
+    /**
+     * Return the search cache of every session, configured by the system properties and
+     * registered the first time, or null if caching is disabled.
+     */
+    public static synchronized SearchCache searchCache() {
+	if (!searchCacheMade) {
+	    searchCache = SearchCache.fromSystemProperties();
+	    searchCacheMade = true;
+	    if (searchCache != null) {
+		register(searchCache, "flightapp:type=SearchCache");
+	    }
+	}
+	return searchCache;
+    }
+
+    private static void register(Object mbean, String type, String name) {
+	register(mbean, "flightapp:type=" + type + ",name=" + name);
+    }
+
+    private static void register(Object mbean, String name) {
+	try {
+	    ObjectName objectName = new ObjectName(name);
+	    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+	    if (!server.isRegistered(objectName)) {
+		server.registerMBean(mbean, objectName);
+	    }
+	} catch (JMException e) {
+	    // The metrics still work, only without JMX.
+	    e.printStackTrace();
+	}
+    }
+
+    public static Collection<TransactionMetrics> all() {
+	return transactions.values();
+    }
+
+    /**
+     * Return the deadlocks of every transaction.
+     */
+    public static long deadlocks() {
+	long deadlocks = 0;
+	for (TransactionMetrics metrics : all()) {
+	    deadlocks += metrics.getDeadlocks();
+	}
+	return deadlocks;
+    }
+
+    /**
+     * Return every transaction's metrics and retry policy, and those of the password
+     * hasher and the search cache, one line each.
+     */
+    public static String dump() {
+	StringBuilder sb = new StringBuilder();
+	for (TransactionMetrics metrics : all()) {
+	    sb.append(metrics).append('\n');
+	}
+	for (RetryPolicy policy : retryPolicies.values()) {
+	    sb.append(policy).append('\n');
+	}
+	synchronized (Metrics.class) {
+	    if (hasher != null) {
+		sb.append(hasher).append('\n');
+	    }
+	    if (searchCache != null) {
+		sb.append(searchCache).append('\n');
+	    }
+	}
+	return sb.toString();
+    }
+}
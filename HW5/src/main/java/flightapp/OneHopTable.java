@@ -0,0 +1,112 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+
+/**
+ * Builds and describes the OneHops table, which holds the shortest one-hop
+ * connections of every (origin, destination, day), ranked like the results of
+ * the ONE_HOP_FLIGHT self-join.
+ *
+ * The Flights table never changes, so the join only needs to run once, here,
+ * rather than for every indirect search. Searches for no more connections than
+ * the table keeps per route then read a range of its primary key; larger ones
+ * still run the join. Build the table after loading Flights with
+ *
+ *     java flightapp.OneHopTable [connections per route and day]
+ *
+ * which connects through dbconn.properties.
+ */
+public class OneHopTable {
+    // Connections kept per route and day unless given on the command line.
+    private static final int DEFAULT_TOP_N = 100;
+
+    private static final String CLEAR = ""
+	+ "DELETE FROM OneHops;";
+
+    // Rank every connection of each route and day by the ONE_HOP_FLIGHT order and
+    // keep the top ones.
+    private static final String FILL = ""
+	+ "INSERT INTO OneHops (origin_city, dest_city, day_of_month, hop_rank, fid1, fid2, actual_time)"
+	+ " SELECT origin_city, dest_city, day_of_month, hop_rank, fid1, fid2, actual_time"
+	+ "  FROM (SELECT f1.origin_city AS origin_city,"
+	+ "               f2.dest_city AS dest_city,"
+	+ "               f1.day_of_month AS day_of_month,"
+	+ "               ROW_NUMBER() OVER (PARTITION BY f1.origin_city, f2.dest_city, f1.day_of_month"
+	+ "                                  ORDER BY f1.actual_time + f2.actual_time, f1.fid, f2.fid) AS hop_rank,"
+	+ "               f1.fid AS fid1,"
+	+ "               f2.fid AS fid2,"
+	+ "               f1.actual_time + f2.actual_time AS actual_time"
+	+ "          FROM Flights AS f1,"
+	+ "               Flights AS f2"
+	+ "         WHERE f1.dest_city = f2.origin_city"
+	+ "           AND f1.day_of_month = f2.day_of_month"
+	+ "           AND f1.canceled <> 1"
+	+ "           AND f2.canceled <> 1) AS ranked"
+	+ " WHERE hop_rank <= ?;";
+
+    private static final String SET_LIMIT = ""
+	+ "UPDATE OneHopLimit"
+	+ "   SET top_n = ?"
+	+ " WHERE id = 1;";
+
+    private static final String GET_LIMIT = ""
+	+ "SELECT top_n"
+	+ "  FROM OneHopLimit"
+	+ " WHERE id = 1;";
+
+    private OneHopTable() {
+    }
+
+    /**
+     * Fill the OneHops table with the given number of connections per route and day,
+     * replacing its contents, in one transaction.
+     */
+    public static void build(Connection conn, int topN) throws SQLException {
+	if (topN < 0) {
+	    throw new IllegalArgumentException("topN must not be negative");
+	}
+
+	conn.setAutoCommit(false);
+	try (PreparedStatement clear = conn.prepareStatement(CLEAR);
+		PreparedStatement fill = conn.prepareStatement(FILL);
+		PreparedStatement setLimit = conn.prepareStatement(SET_LIMIT)) {
+	    clear.executeUpdate();
+	    fill.setInt(1, topN);
+	    fill.executeUpdate();
+
+	    setLimit.setInt(1, topN);
+	    setLimit.executeUpdate();
+	    conn.commit();
+	} catch (SQLException e) {
+	    conn.rollback();
+	    throw e;
+	} finally {
+	    conn.setAutoCommit(true);
+	}
+    }
+
+    /**
+     * Return the number of connections the OneHops table keeps per route and day, or 0
+     * if the table hasn't been built or the database doesn't have it.
+     */
+    public static int limit(Connection conn) {
+	try (Statement statement = conn.createStatement();
+		ResultSet rs = statement.executeQuery(GET_LIMIT)) {
+	    return rs.next() ? rs.getInt("top_n") : 0;
+	} catch (SQLException e) {
+	    // Databases created before the table existed search with the join.
+	    return 0;
+	}
+    }
+
+    public static void main(String[] args) throws SQLException, IOException {
+	int topN = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_TOP_N;
+	try (Connection conn = Query.openConnectionFromDbConn()) {
+	    long start = System.nanoTime();
+	    build(conn, topN);
+	    System.out.printf("Built OneHops with up to %d connections per route and day in %.1f s%n", topN,
+		    (System.nanoTime() - start) / 1e9);
+	}
+    }
+}
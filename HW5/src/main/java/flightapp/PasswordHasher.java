@@ -0,0 +1,287 @@
+package flightapp;
+
+import java.security.*;
+import java.security.spec.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.crypto.*;
+import javax.crypto.spec.*;
+
+/**
+ * Hashes and verifies passwords for every session of the process.
+ *
+ * PBKDF2 is deliberately slow, so hashes run on a small pool of their own with a
+ * bounded queue, leaving request threads free for searches during login storms.
+ * Each hashing thread reuses its own SecretKeyFactory, and salts come from a
+ * per-thread SecureRandom. Logins verified recently are remembered for a short
+ * time so that repeated logins skip the PBKDF2 hash.
+ *
+ * Every part can be switched off on its own: a pool of 0 threads hashes on the
+ * caller's thread, and a cache time to live of 0 disables the credential cache.
+ * Metrics exports the hasher's counters.
+ */
+public class PasswordHasher implements PasswordHasherMBean {
+    // Password hashing parameter constants
+    private static final int HASH_STRENGTH = 65536;
+    private static final int KEY_LENGTH = 128;
+
+    // Per-thread crypto objects
+    private static final ThreadLocal<SecretKeyFactory> FACTORY = ThreadLocal.withInitial(() -> {
+	try {
+	    return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+	} catch (NoSuchAlgorithmException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    });
+    private static final ThreadLocal<SecureRandom> RANDOM = ThreadLocal.withInitial(SecureRandom::new);
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException ex) {
+	    throw new IllegalStateException(ex);
+	}
+    });
+
+    // Let pool run the hashes, or be null if hashes run on the caller's thread.
+    private final ThreadPoolExecutor pool;
+    private final long timeoutMillis;
+
+    // Let verified map usernames to their recently verified credentials.
+    private final long cacheTtlMillis;
+    private final LinkedHashMap<String, VerifiedCredential> verified;
+
+    // Counters
+    private final AtomicLong hashes = new AtomicLong();
+    private final AtomicLong hashNanos = new AtomicLong();
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * Class constructor.
+     *
+     * @param threads        threads that run hashes, or 0 to hash on the caller's thread
+     * @param queueDepth     hashes that may wait for a thread before new ones are rejected
+     * @param timeoutMillis  how long a caller waits for its hash
+     * @param cacheSize      most verified credentials remembered
+     * @param cacheTtlMillis how long a verified credential is remembered, or 0 to disable the cache
+     */
+    public PasswordHasher(int threads, int queueDepth, long timeoutMillis, int cacheSize, long cacheTtlMillis) {
+	this.timeoutMillis = timeoutMillis;
+	this.cacheTtlMillis = cacheTtlMillis;
+
+	if (threads > 0) {
+	    AtomicInteger count = new AtomicInteger();
+	    this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+		    new ArrayBlockingQueue<>(queueDepth), task -> {
+			Thread thread = new Thread(task, "flightapp-hash-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		    }, new ThreadPoolExecutor.AbortPolicy());
+	} else {
+	    this.pool = null;
+	}
+
+	this.verified = new LinkedHashMap<String, VerifiedCredential>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, VerifiedCredential> eldest) {
+		return size() > cacheSize;
+	    }
+	};
+    }
+
+    /**
+     * Return a hasher configured by the flightapp.hash_* and flightapp.credential_cache_*
+     * system properties.
+     */
+    public static PasswordHasher fromSystemProperties() {
+	return new PasswordHasher(
+		Integer.getInteger("flightapp.hash_threads", Runtime.getRuntime().availableProcessors()),
+		Integer.getInteger("flightapp.hash_queue", 1024),
+		Long.getLong("flightapp.hash_timeout_ms", 30000L),
+		Integer.getInteger("flightapp.credential_cache_size", 10000),
+		Long.getLong("flightapp.credential_cache_ttl_ms", 60000L));
+    }
+
+    /**
+     * Generate a random cryptographic salt.
+     */
+    public byte[] newSalt() {
+	byte[] salt = new byte[16];
+	RANDOM.get().nextBytes(salt);
+	return salt;
+    }
+
+    /**
+     * Return the hashed password, or null if the hashing pool is saturated or the
+     * hash did not finish in time.
+     */
+    public byte[] hash(String password, byte[] salt) {
+	if (pool == null) {
+	    return pbkdf2(password, salt);
+	}
+
+	long queued = System.nanoTime();
+	Future<byte[]> result;
+	try {
+	    result = pool.submit(() -> {
+		queueNanos.addAndGet(System.nanoTime() - queued);
+		return pbkdf2(password, salt);
+	    });
+	} catch (RejectedExecutionException e) {
+	    rejected.incrementAndGet();
+	    return null;
+	}
+
+	try {
+	    return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+	} catch (TimeoutException e) {
+	    result.cancel(false);
+	    rejected.incrementAndGet();
+	    return null;
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    return null;
+	} catch (ExecutionException e) {
+	    throw new IllegalStateException(e.getCause());
+	}
+    }
+
+    /**
+     * Return true if the password hashes to the stored hash with the stored salt.
+     * Credentials verified within the cache time to live are not hashed again as long
+     * as the stored salt and hash are unchanged.
+     */
+    public boolean verify(String username, String password, byte[] storedSalt, byte[] storedHash) {
+	String key = username.toLowerCase();
+	byte[] digest = null;
+
+	if (cacheTtlMillis > 0) {
+	    digest = digest(password, storedSalt);
+	    VerifiedCredential credential;
+	    synchronized (verified) {
+		credential = verified.get(key);
+	    }
+	    if (credential != null && credential.matches(digest, storedHash)) {
+		cacheHits.incrementAndGet();
+		return true;
+	    }
+	    cacheMisses.incrementAndGet();
+	}
+
+	byte[] generatedHash = hash(password, storedSalt);
+	if (generatedHash == null || !MessageDigest.isEqual(storedHash, generatedHash)) {
+	    return false;
+	}
+
+	if (digest != null) {
+	    VerifiedCredential credential = new VerifiedCredential(digest, storedHash,
+		    System.currentTimeMillis() + cacheTtlMillis);
+	    synchronized (verified) {
+		verified.put(key, credential);
+	    }
+	}
+	return true;
+    }
+
+    @Override
+    public void clearCache() {
+	synchronized (verified) {
+	    verified.clear();
+	}
+    }
+
+    /**
+     * Run PBKDF2 on the current thread.
+     */
+    private byte[] pbkdf2(String password, byte[] salt) {
+	long start = System.nanoTime();
+
+	// Specify the hash parameters.
+	KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+
+	// Generate the hash.
+	try {
+	    return FACTORY.get().generateSecret(spec).getEncoded();
+	} catch (InvalidKeySpecException ex) {
+	    throw new IllegalStateException(ex);
+	} finally {
+	    hashes.incrementAndGet();
+	    hashNanos.addAndGet(System.nanoTime() - start);
+	}
+    }
+
+    /**
+     * Return a fast salted digest of the password, used only to recognize a password
+     * that was verified moments ago.
+     */
+    private static byte[] digest(String password, byte[] salt) {
+	MessageDigest md = DIGEST.get();
+	md.update(salt);
+	return md.digest(password.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public long getHashes() {
+	return hashes.get();
+    }
+
+    @Override
+    public double getMeanHashMillis() {
+	return hashNanos.get() / (double) Math.max(1, hashes.get()) / 1e6;
+    }
+
+    @Override
+    public double getMeanQueueMillis() {
+	return queueNanos.get() / (double) Math.max(1, hashes.get()) / 1e6;
+    }
+
+    @Override
+    public int getQueued() {
+	return pool == null ? 0 : pool.getQueue().size();
+    }
+
+    @Override
+    public long getRejected() {
+	return rejected.get();
+    }
+
+    @Override
+    public long getCacheHits() {
+	return cacheHits.get();
+    }
+
+    @Override
+    public long getCacheMisses() {
+	return cacheMisses.get();
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%-12s hashes: %d mean ms: %.2f mean queue ms: %.2f queued: %d rejected: %d"
+		+ " cache hits: %d cache misses: %d", "hasher", getHashes(), getMeanHashMillis(),
+		getMeanQueueMillis(), getQueued(), getRejected(), getCacheHits(), getCacheMisses());
+    }
+
+    /**
+     * A credential that was verified with a full hash.
+     */
+    private static class VerifiedCredential {
+	final byte[] digest;
+	final byte[] storedHash;
+	final long expires;
+
+	VerifiedCredential(byte[] digest, byte[] storedHash, long expires) {
+	    this.digest = digest;
+	    this.storedHash = storedHash;
+	    this.expires = expires;
+	}
+
+	boolean matches(byte[] digest, byte[] storedHash) {
+	    return System.currentTimeMillis() < expires && MessageDigest.isEqual(this.digest, digest)
+		&& MessageDigest.isEqual(this.storedHash, storedHash);
+	}
+    }
+}
@@ -0,0 +1,34 @@
+package flightapp;
+
+/**
+ * The JMX view of the password hasher. Times are in milliseconds.
+ */
+public interface PasswordHasherMBean {
+    long getHashes();
+
+    double getMeanHashMillis();
+
+    /**
+     * Return the mean time a hash waited for a hashing thread.
+     */
+    double getMeanQueueMillis();
+
+    /**
+     * Return the number of hashes waiting for a hashing thread.
+     */
+    int getQueued();
+
+    /**
+     * Return the number of hashes refused because the queue was full or that timed out.
+     */
+    long getRejected();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    /**
+     * Forget every verified credential.
+     */
+    void clearCache();
+}
@@ -0,0 +1,121 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The read replicas of the database, each with a connection pool of its own.
+ *
+ * JdbcStorage runs its read-only transactions on the replica the balancing policy
+ * picks: round robin hands the replicas out in turn, and least loaded picks the one
+ * with the fewest connections in use, which favors replicas that answer faster.
+ * Replicas lag behind the primary, so a session that wrote reads what it may have
+ * written from the primary until the maximum lag has passed since.
+ */
+public class ReplicaSet implements AutoCloseable {
+    /**
+     * How a replica is picked for each read-only transaction.
+     */
+    public enum Balance {
+	ROUND_ROBIN,
+	LEAST_LOADED
+    }
+
+    private final List<ConnectionPool> pools;
+    private final Balance balance;
+
+    // Let maxLagNanos bound how far the replicas trail the primary.
+    private final long maxLagNanos;
+
+    // Let next be the turn of round robin.
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Class constructor.
+     *
+     * @param pools        pools of the replicas' connections, closed with the set
+     * @param balance      how a replica is picked
+     * @param maxLagMillis longest the replicas trail the primary, in milliseconds
+     */
+    public ReplicaSet(List<ConnectionPool> pools, Balance balance, long maxLagMillis) {
+	if (pools.isEmpty()) {
+	    throw new IllegalArgumentException("A replica set needs replicas");
+	}
+	this.pools = new ArrayList<>(pools);
+	this.balance = balance;
+	this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+    }
+
+    /**
+     * Return the replicas listed by the flightapp.replicas property of dbconn.properties,
+     * a comma separated list of servers holding replicas of the database that are
+     * logged into like the primary, or null if it lists none. The
+     * flightapp.replica_balance property picks round_robin, the default, or
+     * least_loaded, flightapp.replica_max_lag_ms is the longest the replicas trail the
+     * primary (5000 by default) and flightapp.replica_pool_size sizes the pool of each
+     * replica (flightapp.pool_size by default).
+     */
+    public static ReplicaSet fromDbConn() throws IOException {
+	Properties configProps = ConnectionPool.readDbConn();
+	String replicas = configProps.getProperty("flightapp.replicas", "").trim();
+	if (replicas.isEmpty()) {
+	    return null;
+	}
+
+	String dbName = configProps.getProperty("flightapp.database_name");
+	String adminName = configProps.getProperty("flightapp.username");
+	String password = configProps.getProperty("flightapp.password");
+	int poolSize = Integer.parseInt(configProps.getProperty("flightapp.replica_pool_size",
+		configProps.getProperty("flightapp.pool_size", "20")).trim());
+	Balance balance = Balance.valueOf(configProps.getProperty("flightapp.replica_balance", "round_robin")
+		.trim().toUpperCase());
+	long maxLagMillis = Long.parseLong(configProps.getProperty("flightapp.replica_max_lag_ms", "5000").trim());
+
+	List<ConnectionPool> pools = new ArrayList<>();
+	for (String server : replicas.split(",")) {
+	    String serverURL = server.trim();
+	    pools.add(ConnectionPool.create(
+		    () -> Query.openConnectionFromCredential(serverURL, dbName, adminName, password), poolSize));
+	}
+	return new ReplicaSet(pools, balance, maxLagMillis);
+    }
+
+    /**
+     * Return the pool of the replica to run the next read-only transaction on.
+     */
+    public ConnectionPool choose() {
+	if (balance == Balance.LEAST_LOADED) {
+	    // Start at a different replica each time so that ties are spread out.
+	    int start = Math.floorMod(next.getAndIncrement(), pools.size());
+	    ConnectionPool best = null;
+	    for (int i = 0; i < pools.size(); i++) {
+		ConnectionPool pool = pools.get((start + i) % pools.size());
+		if (best == null || pool.active() < best.active()) {
+		    best = pool;
+		}
+	    }
+	    return best;
+	}
+	return pools.get(Math.floorMod(next.getAndIncrement(), pools.size()));
+    }
+
+    /**
+     * Return true if a write that finished at the given System.nanoTime() may not have
+     * reached every replica yet.
+     */
+    public boolean mayLag(long writeNanos) {
+	return System.nanoTime() - writeNanos < maxLagNanos;
+    }
+
+    /**
+     * Close the pools of the replicas.
+     */
+    @Override
+    public void close() {
+	for (ConnectionPool pool : pools) {
+	    pool.close();
+	}
+    }
+}
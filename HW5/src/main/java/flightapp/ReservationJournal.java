@@ -0,0 +1,513 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.zip.*;
+
+/**
+ * An append-only log of records in memory-mapped segment files.
+ *
+ * Appending a record copies it into the mapped segment and returns at once. A flusher
+ * thread forces the segments to disk, so all the records appended while it forced the
+ * previous ones become durable together with the next fsync. Each record is framed by
+ * its length and CRC32, so a record torn by a crash is recognized, and dropped along
+ * with everything after it, when the journal is opened again.
+ *
+ * A position in the journal is the index of a segment times the segment size plus an
+ * offset into the segment, so positions only ever grow. Segments are files named by
+ * their index, deleted once every record in them has been released.
+ */
+public class ReservationJournal implements AutoCloseable {
+    // Let a record length of 0 mark the end of the journal, and this one the end of a
+    // segment whose remaining space was too small for the next record.
+    private static final int END_OF_SEGMENT = -1;
+
+    // Each record starts with its length and CRC32.
+    private static final int HEADER_SIZE = 8;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("(\\d{16})\\.journal");
+
+    private final Path dir;
+    private final int segmentSize;
+
+    // Let segments map the index of every segment not yet released to it. Guarded by this.
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+
+    // Let appended be the position after the last record appended, and synced the
+    // position up to which records are on disk. Guarded by this.
+    private long appended;
+    private long synced;
+
+    // Let failure be the error that stopped the flusher, if any. Guarded by this.
+    private IOException failure;
+    private boolean closed;
+
+    // Let lastAppended hold, for each thread, the position after the last record it appended.
+    private final ThreadLocal<long[]> lastAppended = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final Thread flusher;
+
+    private ReservationJournal(Path dir, int segmentSize) {
+	this.dir = dir;
+	this.segmentSize = segmentSize;
+	this.flusher = new Thread(this::flush, "flightapp-journal-flusher");
+	this.flusher.setDaemon(true);
+    }
+
+    /**
+     * Open the journal in the given directory, creating it if need be, and find the end
+     * of the records in it. Records before the given position are known to be released
+     * and are dropped; if the journal ends before it, it is started over at the next
+     * segment after it.
+     *
+     * @param segmentSize size of new segment files; existing ones keep their own size
+     */
+    public static ReservationJournal open(Path dir, int segmentSize, long start) throws IOException {
+	Files.createDirectories(dir);
+	TreeMap<Long, Path> files = new TreeMap<>();
+	try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+	    for (Path file : stream) {
+		Matcher m = SEGMENT_NAME.matcher(file.getFileName().toString());
+		if (m.matches()) {
+		    files.put(Long.parseLong(m.group(1)), file);
+		}
+	    }
+	}
+	if (!files.isEmpty()) {
+	    segmentSize = (int) Files.size(files.firstEntry().getValue());
+	}
+	if (segmentSize <= HEADER_SIZE + 4) {
+	    throw new IllegalArgumentException("Journal segments are too small: " + segmentSize);
+	}
+
+	ReservationJournal journal = new ReservationJournal(dir, segmentSize);
+	try {
+	    journal.recover(files, start);
+	} catch (IOException | RuntimeException e) {
+	    journal.closeSegments();
+	    throw e;
+	}
+	journal.flusher.start();
+	return journal;
+    }
+
+    /**
+     * Map the given segment files and find the end of the records in them.
+     */
+    private void recover(TreeMap<Long, Path> files, long start) throws IOException {
+	// Segments after a missing one can't be reached.
+	long next = files.isEmpty() ? 0 : files.firstKey();
+	boolean gap = false;
+	boolean changed = false;
+	for (Map.Entry<Long, Path> entry : files.entrySet()) {
+	    gap |= entry.getKey() != next;
+	    if (gap || (entry.getKey() + 1) * segmentSize <= start) {
+		Files.delete(entry.getValue());
+		changed = true;
+	    } else {
+		segments.put(entry.getKey(), Segment.open(entry.getValue(), segmentSize));
+	    }
+	    next = entry.getKey() + 1;
+	}
+
+	long end = -1;
+	if (!segments.isEmpty()) {
+	    Reader reader = new Reader(segments.firstKey() * segmentSize);
+	    while (reader.read(Long.MAX_VALUE) != null) {
+	    }
+	    end = reader.position;
+	}
+
+	if (end < start) {
+	    for (Segment segment : segments.values()) {
+		segment.close();
+		Files.delete(segment.file);
+	    }
+	    segments.clear();
+	    long index = (start + segmentSize - 1) / segmentSize;
+	    segments.put(index, Segment.open(file(index), segmentSize));
+	    end = index * segmentSize;
+	    changed = true;
+	} else {
+	    // Nothing past the end was ever acknowledged, so clear it for good, lest a
+	    // later crash leave a stale record that looks valid behind new ones.
+	    long last = end / segmentSize;
+	    for (Segment segment : new ArrayList<>(segments.tailMap(last, false).values())) {
+		segment.close();
+		Files.delete(segment.file);
+		changed = true;
+	    }
+	    segments.tailMap(last, false).clear();
+	    if (!segments.containsKey(last)) {
+		segments.put(last, Segment.open(file(last), segmentSize));
+		changed = true;
+	    }
+	    MappedByteBuffer buffer = segments.get(last).buffer;
+	    boolean dirty = false;
+	    for (int i = (int) (end % segmentSize); i < segmentSize; i++) {
+		if (buffer.get(i) != 0) {
+		    buffer.put(i, (byte) 0);
+		    dirty = true;
+		}
+	    }
+	    if (dirty) {
+		buffer.force();
+	    }
+	}
+	if (changed) {
+	    forceDirectory();
+	}
+	appended = end;
+	synced = end;
+    }
+
+    /**
+     * Append the given record, returning the position after it. The record is durable
+     * once sync() returns on the same thread.
+     *
+     * @throws IOException if the journal is closed or can no longer be written
+     */
+    public long append(byte[] record) throws IOException {
+	int size = HEADER_SIZE + record.length;
+	if (size > segmentSize - 4) {
+	    throw new IllegalArgumentException("Journal record too large: " + record.length);
+	}
+	CRC32 crc = new CRC32();
+	crc.update(record);
+
+	long end;
+	synchronized (this) {
+	    if (failure != null) {
+		throw new IOException("Journal failed", failure);
+	    }
+	    if (closed) {
+		throw new IOException("Journal is closed");
+	    }
+
+	    // Always leave room for the end of segment marker.
+	    long index = appended / segmentSize;
+	    int offset = (int) (appended % segmentSize);
+	    if (offset + size > segmentSize - 4) {
+		segments.get(index).buffer.putInt(offset, END_OF_SEGMENT);
+		index++;
+		offset = 0;
+		Segment segment = Segment.open(file(index), segmentSize);
+		segment.created = true;
+		segments.put(index, segment);
+	    }
+
+	    ByteBuffer buffer = segments.get(index).buffer.duplicate();
+	    buffer.position(offset);
+	    buffer.putInt(record.length);
+	    buffer.putInt((int) crc.getValue());
+	    buffer.put(record);
+	    appended = index * segmentSize + offset + size;
+	    end = appended;
+	    notifyAll();
+	}
+	lastAppended.get()[0] = end;
+	return end;
+    }
+
+    /**
+     * Wait until every record the calling thread appended is on disk.
+     *
+     * @throws IOException if the journal failed before they were
+     */
+    public void sync() throws IOException {
+	long position = lastAppended.get()[0];
+	boolean interrupted = false;
+	synchronized (this) {
+	    while (synced < position && failure == null) {
+		try {
+		    wait();
+		} catch (InterruptedException e) {
+		    interrupted = true;
+		}
+	    }
+	    if (interrupted) {
+		Thread.currentThread().interrupt();
+	    }
+	    if (synced < position) {
+		throw new IOException("Journal failed", failure);
+	    }
+	}
+    }
+
+    /**
+     * Return the position up to which records are on disk.
+     */
+    public synchronized long synced() {
+	return synced;
+    }
+
+    /**
+     * Wait up to the given number of milliseconds for records past the given position to
+     * be on disk, returning the position up to which records are.
+     */
+    public synchronized long awaitSynced(long position, long timeoutMillis) throws InterruptedException {
+	long deadline = System.currentTimeMillis() + timeoutMillis;
+	long remaining = timeoutMillis;
+	while (synced <= position && !closed && remaining > 0) {
+	    wait(remaining);
+	    remaining = deadline - System.currentTimeMillis();
+	}
+	return synced;
+    }
+
+    /**
+     * Return the position of the first record that hasn't been released.
+     */
+    public synchronized long first() {
+	return segments.firstKey() * segmentSize;
+    }
+
+    /**
+     * Return a reader of the records from the given position, which must be the position
+     * of a record or of the end of the journal.
+     */
+    public Reader reader(long position) {
+	return new Reader(position);
+    }
+
+    /**
+     * Release the records before the given position, deleting the segments that hold no
+     * other records.
+     */
+    public void release(long position) {
+	List<Segment> released = new ArrayList<>();
+	synchronized (this) {
+	    while (segments.size() > 1 && (segments.firstKey() + 1) * segmentSize <= position) {
+		released.add(segments.pollFirstEntry().getValue());
+	    }
+	}
+	for (Segment segment : released) {
+	    segment.close();
+	    try {
+		Files.deleteIfExists(segment.file);
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+
+    /**
+     * Force every record appended so far to disk and close the journal.
+     */
+    @Override
+    public void close() {
+	synchronized (this) {
+	    closed = true;
+	    notifyAll();
+	}
+	boolean interrupted = false;
+	while (flusher.isAlive()) {
+	    try {
+		flusher.join();
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted) {
+	    Thread.currentThread().interrupt();
+	}
+	closeSegments();
+    }
+
+    private synchronized void closeSegments() {
+	for (Segment segment : segments.values()) {
+	    segment.close();
+	}
+    }
+
+    /**
+     * Force appended records to disk until the journal is closed, one fsync per segment
+     * for however many records were appended meanwhile.
+     */
+    private void flush() {
+	while (true) {
+	    long target;
+	    List<Segment> dirty;
+	    boolean created;
+	    synchronized (this) {
+		while (synced == appended && !closed) {
+		    try {
+			wait();
+		    } catch (InterruptedException e) {
+			// Only close() stops the flusher.
+		    }
+		}
+		if (synced == appended) {
+		    return;
+		}
+		target = appended;
+		dirty = new ArrayList<>(segments.subMap(synced / segmentSize, true, target / segmentSize, true).values());
+		created = false;
+		for (Segment segment : dirty) {
+		    created |= segment.created;
+		}
+	    }
+
+	    try {
+		for (Segment segment : dirty) {
+		    segment.buffer.force();
+		}
+		// Forcing a file's data doesn't make its directory entry durable, and records
+		// in a segment that is gone after a crash would be lost with it.
+		if (created) {
+		    forceDirectory();
+		}
+	    } catch (IOException | RuntimeException e) {
+		synchronized (this) {
+		    failure = new IOException("Could not force the journal to disk", e);
+		    notifyAll();
+		}
+		return;
+	    }
+
+	    synchronized (this) {
+		for (Segment segment : dirty) {
+		    segment.created = false;
+		}
+		synced = target;
+		notifyAll();
+	    }
+	}
+    }
+
+    /**
+     * Force the directory to disk, so that the segment files created and deleted in it
+     * stay so after a crash.
+     */
+    private void forceDirectory() throws IOException {
+	try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+	    channel.force(true);
+	} catch (AccessDeniedException e) {
+	    // Windows can't open a directory to force it.
+	    if (!System.getProperty("os.name").startsWith("Windows")) {
+		throw e;
+	    }
+	}
+    }
+
+    private Path file(long index) {
+	return dir.resolve(String.format("%016d.journal", index));
+    }
+
+    private synchronized Segment segment(long index) {
+	return segments.get(index);
+    }
+
+    /**
+     * Reads the records of the journal in order. A reader belongs to one thread.
+     */
+    public class Reader {
+	private long position;
+
+	private Reader(long position) {
+	    this.position = position;
+	}
+
+	/**
+	 * Return the position of the next record.
+	 */
+	public long position() {
+	    return position;
+	}
+
+	/**
+	 * Return the next record if it starts before the given position, or null. Every
+	 * record before the position must have been appended.
+	 *
+	 * @throws IOException if the record is corrupt or was released
+	 */
+	public byte[] next(long limit) throws IOException {
+	    byte[] record = read(limit);
+	    if (record == null && position < limit) {
+		throw new IOException("Corrupt journal record at position " + position);
+	    }
+	    return record;
+	}
+
+	/**
+	 * Return the next record if it starts before the given position and is intact, or
+	 * null.
+	 */
+	private byte[] read(long limit) {
+	    while (position < limit) {
+		Segment segment = segment(position / segmentSize);
+		if (segment == null) {
+		    return null;
+		}
+		int offset = (int) (position % segmentSize);
+		int length = segment.buffer.getInt(offset);
+		if (length == END_OF_SEGMENT) {
+		    position = (position / segmentSize + 1) * segmentSize;
+		    continue;
+		}
+		if (length <= 0 || length > segmentSize - 4 - HEADER_SIZE - offset) {
+		    return null;
+		}
+
+		ByteBuffer buffer = segment.buffer.duplicate();
+		buffer.position(offset + 4);
+		int crc = buffer.getInt();
+		byte[] record = new byte[length];
+		buffer.get(record);
+		CRC32 actual = new CRC32();
+		actual.update(record);
+		if ((int) actual.getValue() != crc) {
+		    return null;
+		}
+		position += HEADER_SIZE + length;
+		return record;
+	    }
+	    return null;
+	}
+    }
+
+    /**
+     * A segment file mapped into memory.
+     */
+    private static class Segment {
+	final Path file;
+	final FileChannel channel;
+	final MappedByteBuffer buffer;
+
+	// Let created be true from when the file is created until its directory entry is
+	// forced to disk. Guarded by the journal.
+	boolean created;
+
+	private Segment(Path file, FileChannel channel, MappedByteBuffer buffer) {
+	    this.file = file;
+	    this.channel = channel;
+	    this.buffer = buffer;
+	}
+
+	static Segment open(Path file, int size) throws IOException {
+	    FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+		    StandardOpenOption.WRITE);
+	    try {
+		return new Segment(file, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+	    } catch (IOException e) {
+		channel.close();
+		throw e;
+	    }
+	}
+
+	/**
+	 * Close the file. The mapping stays valid until the buffer is collected.
+	 */
+	void close() {
+	    try {
+		channel.close();
+	    } catch (IOException e) {
+		e.printStackTrace();
+	    }
+	}
+    }
+}
@@ -0,0 +1,117 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Formats the search and reservations responses of a session.
+ *
+ * The text is exactly what Flight.toString() and string concatenation produce, but
+ * numbers and strings are appended straight into one StringBuilder that the session
+ * reuses for every response, so formatting a response creates no intermediate
+ * strings. The builder is not thread safe; like the rest of a Query, an encoder
+ * belongs to one session.
+ */
+public class ResponseEncoder {
+    // Let a builder that grew past this many chars be replaced before the next response,
+    // so that one very large response doesn't keep the session's buffer large for good.
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // Let sb hold the response being formatted.
+    private StringBuilder sb = new StringBuilder(INITIAL_CAPACITY);
+
+    // Let chunk carry the response from the builder to a writer.
+    private final char[] chunk = new char[4096];
+
+    /**
+     * Format the given itineraries as search results into the buffer, replacing
+     * whatever it held.
+     */
+    public ResponseEncoder itineraries(List<Query.Itinerary> itineraries) {
+	reset();
+	int n = itineraries.size();
+	for (int i = 0; i < n; i++) {
+	    Query.Itinerary itinerary = itineraries.get(i);
+	    sb.append("Itinerary ").append(i)
+		.append(": ").append(itinerary.flights.length)
+		.append(" flight(s), ").append(itinerary.flightTime).append(" minutes\n");
+	    for (Query.Flight flight : itinerary.flights) {
+		flight(flight);
+	    }
+	}
+	return this;
+    }
+
+    /**
+     * Format the given itineraries as reservations, numbered from 1, into the buffer,
+     * replacing whatever it held.
+     */
+    public ResponseEncoder reservations(List<Query.Itinerary> reservations) {
+	reset();
+	int n = reservations.size();
+	for (int i = 0; i < n; i++) {
+	    Query.Itinerary reservation = reservations.get(i);
+	    sb.append("Reservation ").append(i + 1)
+		.append(" paid: ").append(reservation.paid).append(":\n");
+	    for (Query.Flight flight : reservation.flights) {
+		flight(flight);
+	    }
+	}
+	return this;
+    }
+
+    /**
+     * Append a line in the format of Flight.toString().
+     */
+    private void flight(Query.Flight flight) {
+	sb.append("ID: ").append(flight.fid)
+	    .append(" Day: ").append(flight.dayOfMonth)
+	    .append(" Carrier: ").append(flight.carrierId)
+	    .append(" Number: ").append(flight.flightNum)
+	    .append(" Origin: ").append(flight.originCity)
+	    .append(" Dest: ").append(flight.destCity)
+	    .append(" Duration: ").append(flight.time)
+	    .append(" Capacity: ").append(flight.capacity)
+	    .append(" Price: ").append(flight.price)
+	    .append('\n');
+    }
+
+    /**
+     * Return the number of chars formatted.
+     */
+    public int length() {
+	return sb.length();
+    }
+
+    /**
+     * Write the formatted response to the given writer without copying it into a String.
+     */
+    public void writeTo(Writer out) throws IOException {
+	for (int start = 0; start < sb.length(); start += chunk.length) {
+	    int end = Math.min(sb.length(), start + chunk.length);
+	    sb.getChars(start, end, chunk, 0);
+	    out.write(chunk, 0, end - start);
+	}
+    }
+
+    /**
+     * Return the formatted response.
+     */
+    @Override
+    public String toString() {
+	return sb.toString();
+    }
+
+    /**
+     * Empty the buffer for the next response.
+     */
+    private void reset() {
+	if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+	    sb = new StringBuilder(INITIAL_CAPACITY);
+	} else {
+	    sb.setLength(0);
+	}
+    }
+}
@@ -0,0 +1,160 @@
+package flightapp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Decides how often and after how long one kind of transaction is retried after a
+ * database error such as a deadlock.
+ *
+ * Retries back off exponentially from a base delay up to a cap, and each delay is
+ * drawn uniformly from zero up to that bound ("full jitter") so that transactions
+ * that deadlocked with each other don't collide again on retry. The base delay
+ * grows with the recent deadlock rate of the transaction: under little contention
+ * retries are almost immediate, on a hot flight they spread out.
+ */
+public class RetryPolicy implements RetryPolicyMBean {
+    // How quickly the deadlock rate follows new attempts
+    private static final double RATE_WEIGHT = 0.05;
+
+    // The base delay at a deadlock rate of 1, as a multiple of the configured base delay
+    private static final double MAX_BASE_FACTOR = 10;
+
+    private final String name;
+    private final int maxAttempts;
+    private final long baseMillis;
+    private final long capMillis;
+    private final boolean adaptive;
+
+    // Let deadlockRate hold the bits of the moving average of deadlocks per attempt.
+    private final AtomicLong deadlockRate = new AtomicLong(Double.doubleToLongBits(0));
+
+    // Counters
+    private final LongAdder backoffs = new LongAdder();
+    private final LongAdder backoffMicros = new LongAdder();
+
+    /**
+     * Class constructor.
+     *
+     * @param name        transaction name
+     * @param maxAttempts attempts before the transaction gives up, at least 1
+     * @param baseMillis  bound of the delay before the first retry
+     * @param capMillis   bound of the delay before any retry
+     * @param adaptive    whether the base delay grows with the deadlock rate
+     */
+    public RetryPolicy(String name, int maxAttempts, long baseMillis, long capMillis, boolean adaptive) {
+	if (maxAttempts < 1) {
+	    throw new IllegalArgumentException("maxAttempts must be at least 1");
+	}
+	this.name = name;
+	this.maxAttempts = maxAttempts;
+	this.baseMillis = baseMillis;
+	this.capMillis = capMillis;
+	this.adaptive = adaptive;
+    }
+
+    /**
+     * Return the named transaction's policy configured by the flightapp.retry_* system
+     * properties.
+     */
+    public static RetryPolicy fromSystemProperties(String name) {
+	return new RetryPolicy(name,
+		Integer.getInteger("flightapp.retry_attempts", 3),
+		Long.getLong("flightapp.retry_base_ms", 5L),
+		Long.getLong("flightapp.retry_cap_ms", 250L),
+		Boolean.parseBoolean(System.getProperty("flightapp.retry_adaptive", "true")));
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    @Override
+    public int getMaxAttempts() {
+	return maxAttempts;
+    }
+
+    @Override
+    public long getBaseMillis() {
+	return baseMillis;
+    }
+
+    @Override
+    public long getCapMillis() {
+	return capMillis;
+    }
+
+    @Override
+    public double getDeadlockRate() {
+	return Double.longBitsToDouble(deadlockRate.get());
+    }
+
+    @Override
+    public double getCurrentBaseMillis() {
+	return adaptive ? baseMillis * (1 + (MAX_BASE_FACTOR - 1) * getDeadlockRate()) : baseMillis;
+    }
+
+    @Override
+    public long getBackoffs() {
+	return backoffs.sum();
+    }
+
+    @Override
+    public double getBackoffMillis() {
+	return backoffMicros.sum() / 1e3;
+    }
+
+    /**
+     * Return a random delay in microseconds to wait before the given retry, counting
+     * from 1.
+     */
+    public long delayMicros(int retry) {
+	double bound = getCurrentBaseMillis() * Math.pow(2, Math.min(retry - 1, 30));
+	long boundMicros = (long) (Math.min(bound, capMillis) * 1000);
+	return boundMicros <= 0 ? 0 : ThreadLocalRandom.current().nextLong(boundMicros + 1);
+    }
+
+    /**
+     * Wait before the given retry, counting from 1.
+     */
+    public void backoff(int retry) {
+	long micros = delayMicros(retry);
+	backoffs.increment();
+	backoffMicros.add(micros);
+	if (micros == 0) {
+	    return;
+	}
+	try {
+	    TimeUnit.MICROSECONDS.sleep(micros);
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /**
+     * Fold the attempts of one call of the transaction into the deadlock rate.
+     *
+     * @param attempts  attempts the call made
+     * @param deadlocks attempts that ended in a deadlock
+     */
+    public void observe(int attempts, int deadlocks) {
+	if (attempts <= 0) {
+	    return;
+	}
+	double rate = (double) deadlocks / attempts;
+	while (true) {
+	    long bits = deadlockRate.get();
+	    double current = Double.longBitsToDouble(bits);
+	    double next = current + RATE_WEIGHT * (rate - current);
+	    if (deadlockRate.compareAndSet(bits, Double.doubleToLongBits(next))) {
+		return;
+	    }
+	}
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%-12s attempts: %d deadlock rate: %.3f base ms: %.2f backoffs: %d backoff ms: %.1f",
+		name, maxAttempts, getDeadlockRate(), getCurrentBaseMillis(), getBackoffs(), getBackoffMillis());
+    }
+}
@@ -0,0 +1,26 @@
+package flightapp;
+
+/**
+ * The JMX view of one transaction's retry policy. Times are in milliseconds.
+ */
+public interface RetryPolicyMBean {
+    int getMaxAttempts();
+
+    long getBaseMillis();
+
+    long getCapMillis();
+
+    /**
+     * Return the recent fraction of attempts that ended in a deadlock.
+     */
+    double getDeadlockRate();
+
+    /**
+     * Return the delay before the first retry, before jitter, at the current deadlock rate.
+     */
+    double getCurrentBaseMillis();
+
+    long getBackoffs();
+
+    double getBackoffMillis();
+}
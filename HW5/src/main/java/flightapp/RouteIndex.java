@@ -0,0 +1,502 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * A read-only, in-memory index of the Flights table.
+ *
+ * The app never writes to Flights, so the table is loaded once at startup and
+ * searches are answered from memory instead of by the DIRECT_FLIGHT and
+ * ONE_HOP_FLIGHT queries. Each flight is stored as a row across parallel
+ * primitive arrays; cities and carriers are interned into small string tables.
+ */
+public class RouteIndex {
+    // Load every flight that can appear in a search result.
+    private static final String LOAD_FLIGHTS = ""
+	+ "SELECT fid,"
+	+ "       day_of_month,"
+	+ "       carrier_id,"
+	+ "       flight_num,"
+	+ "       origin_city,"
+	+ "       dest_city,"
+	+ "       actual_time,"
+	+ "       capacity,"
+	+ "       price"
+	+ "  FROM Flights"
+	+ " WHERE canceled <> 1"
+	+ " ORDER BY fid ASC;";
+
+    // Let searches return itineraries of up to this many flights. Set -Dflightapp.max_legs=3
+    // or more to add itineraries with more than one connection to the one-hop ones.
+    static final int MAX_LEGS = Integer.getInteger("flightapp.max_legs", 2);
+
+    // Let every connection take at least this many minutes. Flights have no departure
+    // times, so connections can't be checked one at a time; instead the flights of an
+    // itinerary and its connections must fit in its day. Set
+    // -Dflightapp.min_connection_minutes.
+    static final int MIN_CONNECTION = Integer.getInteger("flightapp.min_connection_minutes", 0);
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    // Let size be the number of flights in the index.
+    private final int size;
+
+    // Let the following arrays hold one flight per row.
+    private final int[] fids;
+    private final int[] days;
+    private final int[] carriers;
+    private final int[] flightNums;
+    private final int[] origins;
+    private final int[] dests;
+    private final int[] times;
+    private final int[] capacities;
+    private final int[] prices;
+
+    // Let the following tables map interned ids back to strings.
+    private final String[] carrierNames;
+    private final String[] cityNames;
+    private final Map<String, Integer> cityIds;
+
+    // Let routes map (origin, destination, day) to its rows ordered by (actual_time, fid).
+    private final Map<Long, int[]> routes;
+
+    // Let departures map (origin, day) to its rows ordered by (actual_time, fid).
+    private final Map<Long, int[]> departures;
+
+    /**
+     * Class constructor.
+     */
+    private RouteIndex(int n, int[] fids, int[] days, int[] carriers, int[] flightNums, int[] origins,
+	    int[] dests, int[] times, int[] capacities, int[] prices, List<String> carrierNames,
+	    List<String> cityNames, Map<String, Integer> cityIds) {
+	this.size = n;
+	this.fids = fids;
+	this.days = days;
+	this.carriers = carriers;
+	this.flightNums = flightNums;
+	this.origins = origins;
+	this.dests = dests;
+	this.times = times;
+	this.capacities = capacities;
+	this.prices = prices;
+	this.carrierNames = carrierNames.toArray(new String[0]);
+	this.cityNames = cityNames.toArray(new String[0]);
+	this.cityIds = cityIds;
+
+	// Visit the rows in (actual_time, fid) order so every bucket is filled already sorted.
+	// Rows are loaded in fid order, so the row number breaks time ties by fid.
+	long[] order = new long[n];
+	for (int row = 0; row < n; row++) {
+	    order[row] = ((long) times[row] << 32) | row;
+	}
+	Arrays.sort(order);
+
+	this.routes = bucket(order, true);
+	this.departures = bucket(order, false);
+    }
+
+    /**
+     * Return the flights of the Flights table loaded into a new index.
+     */
+    public static RouteIndex load(Connection conn) throws SQLException {
+	Builder builder = new Builder();
+	try (Statement statement = conn.createStatement();
+		ResultSet rs = statement.executeQuery(LOAD_FLIGHTS)) {
+	    while (rs.next()) {
+		builder.add(rs.getInt(1), rs.getInt(2), rs.getString(3), rs.getInt(4), rs.getString(5),
+			rs.getString(6), rs.getInt(7), rs.getInt(8), rs.getInt(9));
+	    }
+	}
+	return builder.build();
+    }
+
+    /**
+     * Collects flights, in ascending fid order, into a new index.
+     */
+    public static class Builder {
+	private int n = 0;
+	private int[] fids = new int[1024];
+	private int[] days = new int[1024];
+	private int[] carriers = new int[1024];
+	private int[] flightNums = new int[1024];
+	private int[] origins = new int[1024];
+	private int[] dests = new int[1024];
+	private int[] times = new int[1024];
+	private int[] capacities = new int[1024];
+	private int[] prices = new int[1024];
+
+	private final List<String> carrierNames = new ArrayList<>();
+	private final Map<String, Integer> carrierIds = new HashMap<>();
+	private final List<String> cityNames = new ArrayList<>();
+	// City comparisons in SQL Server are case insensitive.
+	private final Map<String, Integer> cityIds = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+	/**
+	 * Add a flight with a larger fid than every flight added before.
+	 */
+	public Builder add(int fid, int day, String carrierId, int flightNum, String originCity, String destCity,
+		int time, int capacity, int price) {
+	    if (n > 0 && fid <= fids[n - 1]) {
+		throw new IllegalArgumentException("Flights must be added in ascending fid order: " + fid);
+	    }
+
+	    // Grow the arrays as needed.
+	    if (n == fids.length) {
+		int size = n * 2;
+		fids = Arrays.copyOf(fids, size);
+		days = Arrays.copyOf(days, size);
+		carriers = Arrays.copyOf(carriers, size);
+		flightNums = Arrays.copyOf(flightNums, size);
+		origins = Arrays.copyOf(origins, size);
+		dests = Arrays.copyOf(dests, size);
+		times = Arrays.copyOf(times, size);
+		capacities = Arrays.copyOf(capacities, size);
+		prices = Arrays.copyOf(prices, size);
+	    }
+
+	    fids[n] = fid;
+	    days[n] = day;
+	    carriers[n] = intern(carrierId, carrierNames, carrierIds);
+	    flightNums[n] = flightNum;
+	    origins[n] = intern(originCity, cityNames, cityIds);
+	    dests[n] = intern(destCity, cityNames, cityIds);
+	    times[n] = time;
+	    capacities[n] = capacity;
+	    prices[n] = price;
+	    n++;
+	    return this;
+	}
+
+	public RouteIndex build() {
+	    return new RouteIndex(n, fids, days, carriers, flightNums, origins, dests, times, capacities, prices,
+		    carrierNames, cityNames, cityIds);
+	}
+    }
+
+    /**
+     * Return the id of the given string, adding it to the table if it isn't already there.
+     */
+    private static int intern(String value, List<String> names, Map<String, Integer> ids) {
+	Integer id = ids.get(value);
+	if (id == null) {
+	    id = names.size();
+	    names.add(value);
+	    ids.put(value, id);
+	}
+	return id;
+    }
+
+    /**
+     * Group the given (actual_time, row) ordered rows by route when byRoute is true
+     * and by departure otherwise.
+     */
+    private Map<Long, int[]> bucket(long[] order, boolean byRoute) {
+	// Count the rows of each bucket.
+	Map<Long, int[]> counts = new HashMap<>();
+	for (long entry : order) {
+	    int row = (int) entry;
+	    long key = byRoute ? routeKey(origins[row], dests[row], days[row]) : departureKey(origins[row], days[row]);
+	    counts.computeIfAbsent(key, k -> new int[1])[0]++;
+	}
+
+	// Fill each bucket in order.
+	Map<Long, int[]> buckets = new HashMap<>(counts.size() * 2);
+	for (long entry : order) {
+	    int row = (int) entry;
+	    long key = byRoute ? routeKey(origins[row], dests[row], days[row]) : departureKey(origins[row], days[row]);
+	    int[] bucket = buckets.get(key);
+	    if (bucket == null) {
+		bucket = new int[counts.get(key)[0]];
+		buckets.put(key, bucket);
+	    }
+	    bucket[bucket.length - counts.get(key)[0]--] = row;
+	}
+	return buckets;
+    }
+
+    private static long routeKey(int origin, int dest, int day) {
+	return ((long) origin << 32) | ((long) dest << 8) | day;
+    }
+
+    private static long departureKey(int origin, int day) {
+	return ((long) origin << 32) | day;
+    }
+
+    /**
+     * Return the number of flights in the index.
+     */
+    public int size() {
+	return size;
+    }
+
+    /**
+     * Add up to the given maximum number of direct itineraries to the given list,
+     * ordered by flight time and then fid.
+     */
+    public List<Query.Itinerary> getDirectFlights(List<Query.Itinerary> itineraries, int max, String origin,
+	    String destination, int day) {
+	int[] rows = route(origin, destination, day);
+	int n = Math.min(max, rows.length);
+	for (int i = 0; i < n; i++) {
+	    int row = rows[i];
+	    itineraries.add(new Query.Itinerary(flight(row), null, times[row], true));
+	}
+	return itineraries;
+    }
+
+    /**
+     * Add up to the given maximum number of indirect itineraries to the given list,
+     * ordered by total flight time and then by their fids in order. Itineraries have up
+     * to MAX_LEGS flights and leave MIN_CONNECTION minutes for each connection; by
+     * default they are the one-hop itineraries.
+     */
+    public List<Query.Itinerary> getIndirectFlights(List<Query.Itinerary> itineraries, int max, String origin,
+	    String destination, int day) {
+	if (MAX_LEGS > 2 || MIN_CONNECTION > 0) {
+	    return getConnectingFlights(itineraries, max, origin, destination, day, MAX_LEGS, MIN_CONNECTION);
+	}
+
+	Integer originId = cityIds.get(origin);
+	Integer destId = cityIds.get(destination);
+	if (max <= 0 || originId == null || destId == null) {
+	    return itineraries;
+	}
+
+	// Every first leg pairs with an already ordered list of second legs, so
+	// merging those lists yields the one-hop itineraries in order.
+	PriorityQueue<Hop> hops = new PriorityQueue<>();
+	for (int first : departures.getOrDefault(departureKey(originId, day), new int[0])) {
+	    int[] seconds = routes.get(routeKey(dests[first], destId, day));
+	    if (seconds != null) {
+		hops.add(new Hop(first, seconds, 0));
+	    }
+	}
+
+	for (int i = 0; i < max && !hops.isEmpty(); i++) {
+	    Hop hop = hops.poll();
+	    int second = hop.seconds[hop.next];
+	    itineraries.add(new Query.Itinerary(flight(hop.first), flight(second), hop.time, false));
+
+	    if (hop.next + 1 < hop.seconds.length) {
+		hops.add(new Hop(hop.first, hop.seconds, hop.next + 1));
+	    }
+	}
+	return itineraries;
+    }
+
+    /**
+     * Add up to the given maximum number of itineraries of 2 to maxLegs flights to the
+     * given list, ordered by total flight time and then by their fids in order. No
+     * itinerary passes through a city twice, and unless minConnection is 0 the flights of
+     * each itinerary plus minConnection minutes per connection fit in a day.
+     */
+    public List<Query.Itinerary> getConnectingFlights(List<Query.Itinerary> itineraries, int max, String origin,
+	    String destination, int day, int maxLegs, int minConnection) {
+	Integer originId = cityIds.get(origin);
+	Integer destId = cityIds.get(destination);
+	if (max <= 0 || maxLegs < 2 || originId == null || destId == null) {
+	    return itineraries;
+	}
+
+	// Always extend the shortest path found so far. Flight times are never negative,
+	// so the paths that reach the destination come off the queue in order.
+	Search search = new Search(max, destId, maxLegs, minConnection);
+	for (int first : departures.getOrDefault(departureKey(originId, day), new int[0])) {
+	    if (dests[first] != destId && dests[first] != originId && !search.offer(null, first)) {
+		break;
+	    }
+	}
+
+	int found = 0;
+	while (found < max && !search.paths.isEmpty()) {
+	    Path path = search.paths.poll();
+	    if (path.city == destId) {
+		itineraries.add(itinerary(path));
+		found++;
+	    } else if (path.rows.length == maxLegs - 1) {
+		// Only the last flight is left, so it has to land at the destination.
+		for (int next : routes.getOrDefault(routeKey(path.city, destId, day), new int[0])) {
+		    if (!search.offer(path, next)) {
+			break;
+		    }
+		}
+	    } else {
+		// The destination may be the origin, as in the one-hop query.
+		for (int next : departures.getOrDefault(departureKey(path.city, day), new int[0])) {
+		    if ((dests[next] == destId || !path.visits(dests[next])) && !search.offer(path, next)) {
+			break;
+		    }
+		}
+	    }
+	}
+	return itineraries;
+    }
+
+    /**
+     * Return the itinerary of the flights of the given path.
+     */
+    private Query.Itinerary itinerary(Path path) {
+	Query.Flight[] flights = new Query.Flight[path.rows.length];
+	for (int i = 0; i < flights.length; i++) {
+	    flights[i] = flight(path.rows[i]);
+	}
+	return new Query.Itinerary(flights, path.time);
+    }
+
+    /**
+     * Return the flight with the given fid, or null if it isn't in the index.
+     */
+    public Query.Flight getFlight(int fid) {
+	// Rows are stored in fid order.
+	int row = Arrays.binarySearch(fids, 0, size, fid);
+	return row < 0 ? null : flight(row);
+    }
+
+    /**
+     * Return the rows from the given origin to the given destination on the given day.
+     */
+    private int[] route(String origin, String destination, int day) {
+	Integer originId = cityIds.get(origin);
+	Integer destId = cityIds.get(destination);
+	if (originId == null || destId == null) {
+	    return new int[0];
+	}
+	return routes.getOrDefault(routeKey(originId, destId, day), new int[0]);
+    }
+
+    /**
+     * Return the flight stored in the given row.
+     */
+    private Query.Flight flight(int row) {
+	return new Query.Flight(fids[row], days[row], carrierNames[carriers[row]],
+		Integer.toString(flightNums[row]),
+		cityNames[origins[row]], cityNames[dests[row]], times[row], capacities[row], prices[row]);
+    }
+
+    /**
+     * The next second leg to pair with a given first leg.
+     */
+    private class Hop implements Comparable<Hop> {
+	final int first;
+	final int[] seconds;
+	final int next;
+	final int time;
+
+	Hop(int first, int[] seconds, int next) {
+	    this.first = first;
+	    this.seconds = seconds;
+	    this.next = next;
+	    this.time = times[first] + times[seconds[next]];
+	}
+
+	@Override
+	public int compareTo(Hop other) {
+	    if (this.time != other.time) {
+		return Integer.compare(this.time, other.time);
+	    }
+	    if (this.first != other.first) {
+		return Integer.compare(fids[this.first], fids[other.first]);
+	    }
+	    return Integer.compare(fids[this.seconds[this.next]], fids[other.seconds[other.next]]);
+	}
+    }
+
+    /**
+     * The state of a getConnectingFlights() search.
+     */
+    private class Search {
+	final int max;
+	final int destId;
+	final int maxLegs;
+	final int minConnection;
+
+	// Let paths hold the paths still to extend or, if complete, to return.
+	final PriorityQueue<Path> paths = new PriorityQueue<>();
+
+	// Let best hold the times of the shortest complete paths queued so far, longest
+	// first. Once it holds max of them, no longer path can make the answer.
+	final PriorityQueue<Integer> best = new PriorityQueue<>(Collections.reverseOrder());
+
+	Search(int max, int destId, int maxLegs, int minConnection) {
+	    this.max = max;
+	    this.destId = destId;
+	    this.maxLegs = maxLegs;
+	    this.minConnection = minConnection;
+	}
+
+	/**
+	 * Queue the given path followed by the flight in the given row, unless it can't make
+	 * the answer. Return false if no longer flight could make it either.
+	 */
+	boolean offer(Path previous, int row) {
+	    int time = (previous == null ? 0 : previous.time) + times[row];
+	    if (best.size() == max && time > best.peek()) {
+		return false;
+	    }
+	    int connections = (previous == null) ? 0 : previous.rows.length;
+	    if (minConnection > 0 && time + connections * minConnection > MINUTES_PER_DAY) {
+		return false;
+	    }
+
+	    Path path = new Path(previous, row, time);
+	    paths.add(path);
+	    if (path.city == destId) {
+		best.add(time);
+		if (best.size() > max) {
+		    best.poll();
+		}
+	    }
+	    return true;
+	}
+    }
+
+    /**
+     * A sequence of connecting flights from the origin of a search.
+     */
+    private class Path implements Comparable<Path> {
+	final int[] rows;
+	final int city;
+	final int time;
+
+	Path(Path previous, int row, int time) {
+	    if (previous == null) {
+		this.rows = new int[] { row };
+	    } else {
+		this.rows = Arrays.copyOf(previous.rows, previous.rows.length + 1);
+		this.rows[previous.rows.length] = row;
+	    }
+	    this.city = dests[row];
+	    this.time = time;
+	}
+
+	/**
+	 * Return true if the path starts or lands at the given city.
+	 */
+	boolean visits(int cityId) {
+	    if (origins[rows[0]] == cityId) {
+		return true;
+	    }
+	    for (int row : rows) {
+		if (dests[row] == cityId) {
+		    return true;
+		}
+	    }
+	    return false;
+	}
+
+	@Override
+	public int compareTo(Path other) {
+	    if (this.time != other.time) {
+		return Integer.compare(this.time, other.time);
+	    }
+	    int n = Math.min(this.rows.length, other.rows.length);
+	    for (int i = 0; i < n; i++) {
+		if (this.rows[i] != other.rows[i]) {
+		    return Integer.compare(fids[this.rows[i]], fids[other.rows[i]]);
+		}
+	    }
+	    return Integer.compare(this.rows.length, other.rows.length);
+	}
+    }
+}
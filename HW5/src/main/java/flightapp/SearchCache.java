@@ -0,0 +1,200 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A process-wide, bounded cache of search results shared by every session.
+ *
+ * Entries are keyed by the normalized (origin, destination, direct, day) tuple
+ * and evicted in least recently used order once the cache is full, or once they
+ * are older than the optional time to live.
+ *
+ * Because search fills up to the requested count with direct flights before it
+ * adds any indirect ones, a result for a smaller count is not always a prefix of
+ * the result for a larger one. An entry therefore keeps its direct and indirect
+ * itineraries apart and rebuilds the answer for any count it covers.
+ *
+ * Metrics exports the cache's counters.
+ */
+public class SearchCache implements SearchCacheMBean {
+    // Let maxEntries be the most entries the cache holds before evicting.
+    private final int maxEntries;
+
+    // Let ttlMillis be how long an entry stays valid, or 0 if entries never expire.
+    private final long ttlMillis;
+
+    // Let entries hold the cached results in least recently used order.
+    private final LinkedHashMap<String, CachedSearch> entries;
+
+    // Counters
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Class constructor.
+     *
+     * @param maxEntries most entries to keep, must be positive
+     * @param ttlMillis  entry time to live in milliseconds, or 0 for no expiry
+     */
+    public SearchCache(int maxEntries, long ttlMillis) {
+	if (maxEntries <= 0) {
+	    throw new IllegalArgumentException("maxEntries must be positive");
+	}
+	this.maxEntries = maxEntries;
+	this.ttlMillis = ttlMillis;
+	this.entries = new LinkedHashMap<String, CachedSearch>(16, 0.75f, true) {
+	    @Override
+	    protected boolean removeEldestEntry(Map.Entry<String, CachedSearch> eldest) {
+		if (size() > SearchCache.this.maxEntries) {
+		    evictions.incrementAndGet();
+		    return true;
+		}
+		return false;
+	    }
+	};
+    }
+
+    /**
+     * Return a cache configured by the flightapp.search_cache_size and
+     * flightapp.search_cache_ttl_ms system properties, or null if the size is 0.
+     */
+    public static SearchCache fromSystemProperties() {
+	int size = Integer.getInteger("flightapp.search_cache_size", 4096);
+	long ttl = Long.getLong("flightapp.search_cache_ttl_ms", 0L);
+	return size > 0 ? new SearchCache(size, ttl) : null;
+    }
+
+    /**
+     * Return the sorted itineraries for the given search, or null if the cache
+     * holds no entry that covers the given count.
+     */
+    public List<Query.Itinerary> get(String origin, String destination, boolean direct, int day, int count) {
+	String key = key(origin, destination, direct, day);
+	CachedSearch entry;
+	synchronized (entries) {
+	    entry = entries.get(key);
+	    if (entry != null && ttlMillis > 0 && System.currentTimeMillis() - entry.created > ttlMillis) {
+		entries.remove(key);
+		entry = null;
+	    }
+	}
+
+	if (entry == null || !entry.covers(count)) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	hits.incrementAndGet();
+	return entry.itineraries(count);
+    }
+
+    /**
+     * Store the direct and indirect itineraries found by a search for the given count.
+     * Each list must be sorted and hold what search found before merging them.
+     */
+    public void put(String origin, String destination, boolean direct, int day, int count,
+	    List<Query.Itinerary> directs, List<Query.Itinerary> indirects) {
+	CachedSearch entry = new CachedSearch(count, direct, directs, indirects);
+	String key = key(origin, destination, direct, day);
+	synchronized (entries) {
+	    // Never replace an entry with one that covers fewer counts.
+	    CachedSearch existing = entries.get(key);
+	    if (existing == null || !existing.covers(count + 1) || entry.covers(existing.count + 1)) {
+		entries.put(key, entry);
+	    }
+	}
+    }
+
+    @Override
+    public void clear() {
+	synchronized (entries) {
+	    entries.clear();
+	}
+    }
+
+    @Override
+    public int getSize() {
+	synchronized (entries) {
+	    return entries.size();
+	}
+    }
+
+    @Override
+    public long getHits() {
+	return hits.get();
+    }
+
+    @Override
+    public long getMisses() {
+	return misses.get();
+    }
+
+    @Override
+    public double getHitRate() {
+	long hits = getHits();
+	return hits / (double) Math.max(1, hits + getMisses());
+    }
+
+    @Override
+    public long getEvictions() {
+	return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%-12s size: %d hits: %d misses: %d hit rate: %.3f evictions: %d", "searchcache",
+		getSize(), getHits(), getMisses(), getHitRate(), getEvictions());
+    }
+
+    /**
+     * Return the normalized key of a search. City names compare case insensitively.
+     */
+    private static String key(String origin, String destination, boolean direct, int day) {
+	return origin.toLowerCase() + '\0' + destination.toLowerCase() + '\0' + (direct ? 1 : 0) + '\0' + day;
+    }
+
+    /**
+     * A cached search result.
+     */
+    private static class CachedSearch {
+	final int count;
+	final boolean direct;
+	final List<Query.Itinerary> directs;
+	final List<Query.Itinerary> indirects;
+	final long created;
+
+	CachedSearch(int count, boolean direct, List<Query.Itinerary> directs, List<Query.Itinerary> indirects) {
+	    this.count = count;
+	    this.direct = direct;
+	    this.directs = new ArrayList<>(directs);
+	    this.indirects = new ArrayList<>(indirects);
+	    this.created = System.currentTimeMillis();
+	}
+
+	/**
+	 * Return true if this entry holds the full answer for the given count.
+	 */
+	boolean covers(int count) {
+	    if (count <= this.count) {
+		return true;
+	    }
+
+	    // A search that found fewer itineraries than it asked for found all of them.
+	    boolean allDirects = directs.size() < this.count;
+	    boolean allIndirects = direct || indirects.size() < this.count - directs.size();
+	    return allDirects && allIndirects;
+	}
+
+	/**
+	 * Return the sorted answer for the given count.
+	 */
+	List<Query.Itinerary> itineraries(int count) {
+	    int numDirects = Math.min(count, directs.size());
+	    int numIndirects = direct ? 0 : Math.min(count - numDirects, indirects.size());
+
+	    List<Query.Itinerary> result = new ArrayList<>(directs.subList(0, numDirects));
+	    return Query.Itinerary.merge(result, indirects.subList(0, numIndirects));
+	}
+    }
+}
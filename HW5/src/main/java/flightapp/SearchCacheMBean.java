@@ -0,0 +1,24 @@
+package flightapp;
+
+/**
+ * The JMX view of the search result cache.
+ */
+public interface SearchCacheMBean {
+    int getSize();
+
+    long getHits();
+
+    long getMisses();
+
+    /**
+     * Return the fraction of lookups that were hits.
+     */
+    double getHitRate();
+
+    long getEvictions();
+
+    /**
+     * Remove every entry.
+     */
+    void clear();
+}
@@ -0,0 +1,161 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Where the Flights application keeps its users, flights and reservations.
+ *
+ * Query keeps the state of a session, checks its input and formats every
+ * response; a storage only runs the data access behind each transaction, as one
+ * atomic operation of a Session. Three storages are provided: JdbcStorage keeps
+ * the data in the SQL Server database, InMemoryStorage keeps it in memory without
+ * any database server, and JournaledStorage keeps it in memory backed by a local
+ * write-ahead journal that it applies to the database in the background.
+ */
+public interface Storage extends AutoCloseable {
+    /**
+     * Returned by Session.book() when the user already has a reservation on the day.
+     */
+    int SAME_DAY = -1;
+
+    /**
+     * Returned by Session.book() when a flight of the itinerary is full.
+     */
+    int FULL = 0;
+
+    /**
+     * Open a session. Each Query uses its own session from a single thread.
+     */
+    Session openSession() throws SQLException;
+
+    /**
+     * Release everything the storage holds. Sessions must be closed first.
+     */
+    @Override
+    void close();
+
+    /**
+     * The operations a Query session runs against a storage. Each operation is atomic:
+     * it either happens entirely or not at all. An operation that throws SQLException
+     * failed after any retries the storage makes, and changed nothing.
+     *
+     * Usernames compare case insensitively, as do city names.
+     */
+    interface Session {
+	/**
+	 * Delete every user and reservation and start the reservation IDs over from 1.
+	 */
+	void clear() throws SQLException;
+
+	/**
+	 * Return the user's salt and password hash, or null if there is no such user.
+	 */
+	Credentials getCredentials(String username) throws SQLException;
+
+	/**
+	 * Add the user, returning false if the username is taken.
+	 */
+	boolean createUser(String username, byte[] salt, byte[] hash, int balance) throws SQLException;
+
+	/**
+	 * Add up to count direct itineraries on the day to directs, ordered by flight time
+	 * and then fid. Unless directOnly is true, fill the rest of count with indirect
+	 * itineraries added to indirects, ordered by total flight time and then by their
+	 * fids in order. Indirect itineraries are one-hop unless RouteIndex.MAX_LEGS allows
+	 * more flights and the storage searches with a RouteIndex.
+	 */
+	void search(String origin, String destination, boolean directOnly, int day, int count,
+		List<Query.Itinerary> directs, List<Query.Itinerary> indirects) throws SQLException;
+
+	/**
+	 * Book a seat on every flight of the itinerary for the user. Return the new
+	 * reservation's ID, which is one more than the last ID handed out, or SAME_DAY or
+	 * FULL if the booking was refused.
+	 */
+	int book(String username, Query.Itinerary itinerary) throws SQLException;
+
+	/**
+	 * Pay for the user's unpaid reservation out of the user's balance.
+	 */
+	Payment pay(String username, int reservationId) throws SQLException;
+
+	/**
+	 * Return the user's reservations that aren't canceled, in ID order.
+	 */
+	List<Query.Itinerary> getReservations(String username) throws SQLException;
+
+	/**
+	 * Cancel the user's reservation and refund its price, returning false if the user
+	 * has no such reservation that isn't already canceled.
+	 */
+	boolean cancel(String username, int reservationId) throws SQLException;
+
+	/**
+	 * Return the number of times operations of this session were retried so far.
+	 */
+	int retries();
+
+	/**
+	 * Return the number of deadlocks operations of this session were chosen as victim of.
+	 */
+	int deadlocks();
+
+	/**
+	 * Release whatever the session holds.
+	 */
+	void close() throws SQLException;
+    }
+
+    /**
+     * A user's salt and password hash.
+     */
+    final class Credentials {
+	public final byte[] salt;
+	public final byte[] hash;
+
+	public Credentials(byte[] salt, byte[] hash) {
+	    this.salt = salt;
+	    this.hash = hash;
+	}
+    }
+
+    /**
+     * The outcome of paying for a reservation.
+     */
+    final class Payment {
+	/**
+	 * The user has no unpaid reservation with the given ID.
+	 */
+	public static final Payment NOT_FOUND = new Payment(false, 0, 0);
+
+	// Let paid be true if the reservation was paid for.
+	public final boolean paid;
+
+	// Let balance be the user's balance after paying, or before if the user couldn't.
+	public final int balance;
+
+	// Let price be the price of the reservation.
+	public final int price;
+
+	private Payment(boolean paid, int balance, int price) {
+	    this.paid = paid;
+	    this.balance = balance;
+	    this.price = price;
+	}
+
+	/**
+	 * Return the outcome of a payment that left the user with the given balance.
+	 */
+	public static Payment paid(int balance, int price) {
+	    return new Payment(true, balance, price);
+	}
+
+	/**
+	 * Return the outcome of a payment refused because the balance is below the price.
+	 */
+	public static Payment insufficientFunds(int balance, int price) {
+	    return new Payment(false, balance, price);
+	}
+    }
+}
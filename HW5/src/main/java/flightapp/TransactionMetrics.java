@@ -0,0 +1,210 @@
+package flightapp;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts and latencies of one kind of transaction, recorded by every session
+ * without locking.
+ *
+ * Every call ends in exactly one of three outcomes: a success, a business failure
+ * (the transaction ran but the answer was no, such as a full flight), or exhausted
+ * retries (the transaction gave up after database errors). Retries and deadlocks
+ * are counted on top of the outcome.
+ *
+ * Latencies go into a histogram with eight buckets per power of two of
+ * microseconds, so percentiles are accurate to within an eighth.
+ */
+public class TransactionMetrics implements TransactionMetricsMBean {
+    // Eight buckets for each of up to 2^40 microseconds, about twelve days.
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final String name;
+    private final String successPrefix;
+
+    // Counters
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder businessFailures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder exhaustedRetries = new LongAdder();
+
+    // Latency histogram
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Class constructor.
+     *
+     * @param name          transaction name
+     * @param successPrefix start of every successful response
+     */
+    public TransactionMetrics(String name, String successPrefix) {
+	this.name = name;
+	this.successPrefix = successPrefix;
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Record one call of the transaction.
+     *
+     * @param nanos     how long the call took
+     * @param response  what the call returned
+     * @param retries   times the transaction was retried
+     * @param deadlocks deadlocks the transaction was chosen as victim of
+     * @param exhausted whether the transaction gave up after database errors
+     */
+    public void record(long nanos, String response, int retries, int deadlocks, boolean exhausted) {
+	long micros = nanos / 1000;
+	buckets.incrementAndGet(bucket(micros));
+	totalMicros.add(micros);
+	maxMicros.accumulate(micros);
+
+	if (exhausted) {
+	    exhaustedRetries.increment();
+	} else if (response.startsWith(successPrefix)) {
+	    successes.increment();
+	} else {
+	    businessFailures.increment();
+	}
+	if (retries > 0) {
+	    this.retries.add(retries);
+	}
+	if (deadlocks > 0) {
+	    this.deadlocks.add(deadlocks);
+	}
+    }
+
+    @Override
+    public long getCount() {
+	return getSuccesses() + getBusinessFailures() + getExhaustedRetries();
+    }
+
+    @Override
+    public long getSuccesses() {
+	return successes.sum();
+    }
+
+    @Override
+    public long getBusinessFailures() {
+	return businessFailures.sum();
+    }
+
+    @Override
+    public long getRetries() {
+	return retries.sum();
+    }
+
+    @Override
+    public long getDeadlocks() {
+	return deadlocks.sum();
+    }
+
+    @Override
+    public long getExhaustedRetries() {
+	return exhaustedRetries.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+	return totalMicros.sum() / 1e3 / Math.max(1, getCount());
+    }
+
+    @Override
+    public double getMaxMillis() {
+	return maxMicros.get() / 1e3;
+    }
+
+    @Override
+    public double getP50Millis() {
+	return percentile(50) / 1e3;
+    }
+
+    @Override
+    public double getP90Millis() {
+	return percentile(90) / 1e3;
+    }
+
+    @Override
+    public double getP99Millis() {
+	return percentile(99) / 1e3;
+    }
+
+    @Override
+    public double getP999Millis() {
+	return percentile(99.9) / 1e3;
+    }
+
+    @Override
+    public void reset() {
+	successes.reset();
+	businessFailures.reset();
+	retries.reset();
+	deadlocks.reset();
+	exhaustedRetries.reset();
+	for (int i = 0; i < BUCKETS; i++) {
+	    buckets.set(i, 0);
+	}
+	totalMicros.reset();
+	maxMicros.reset();
+    }
+
+    /**
+     * Return the latency in microseconds that the given percentage of calls took at most.
+     */
+    public long percentile(double percent) {
+	long[] counts = new long[BUCKETS];
+	long total = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    counts[i] = buckets.get(i);
+	    total += counts[i];
+	}
+
+	long rank = (long) Math.ceil(total * percent / 100);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += counts[i];
+	    if (seen >= rank && counts[i] > 0) {
+		return Math.min(upperBound(i), maxMicros.get());
+	    }
+	}
+	return 0;
+    }
+
+    /**
+     * Return the histogram bucket of the given latency.
+     */
+    private static int bucket(long micros) {
+	if (micros < SUB_BUCKETS) {
+	    return (int) micros;
+	}
+	int exponent = 63 - Long.numberOfLeadingZeros(micros);
+	int sub = (int) (micros >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+	return Math.min((exponent - 2) * SUB_BUCKETS + sub, BUCKETS - 1);
+    }
+
+    /**
+     * Return the largest latency that falls in the given bucket.
+     */
+    private static long upperBound(int bucket) {
+	if (bucket < SUB_BUCKETS) {
+	    return bucket;
+	}
+	int exponent = bucket / SUB_BUCKETS + 2;
+	long width = 1L << (exponent - 3);
+	return (SUB_BUCKETS + bucket % SUB_BUCKETS) * width + width - 1;
+    }
+
+    @Override
+    public String toString() {
+	return String.format("%-12s count: %d ok: %d failed: %d retries: %d deadlocks: %d exhausted: %d"
+		+ " mean ms: %.2f p50: %.2f p90: %.2f p99: %.2f p99.9: %.2f max: %.2f",
+		name, getCount(), getSuccesses(), getBusinessFailures(), getRetries(), getDeadlocks(),
+		getExhaustedRetries(), getMeanMillis(), getP50Millis(), getP90Millis(), getP99Millis(),
+		getP999Millis(), getMaxMillis());
+    }
+}
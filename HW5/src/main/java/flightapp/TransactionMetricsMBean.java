@@ -0,0 +1,35 @@
+package flightapp;
+
+/**
+ * The JMX view of one transaction's metrics. Times are in milliseconds.
+ */
+public interface TransactionMetricsMBean {
+    long getCount();
+
+    long getSuccesses();
+
+    long getBusinessFailures();
+
+    long getRetries();
+
+    long getDeadlocks();
+
+    long getExhaustedRetries();
+
+    double getMeanMillis();
+
+    double getMaxMillis();
+
+    double getP50Millis();
+
+    double getP90Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    /**
+     * Start every count and the latency histogram over from zero.
+     */
+    void reset();
+}
@@ -0,0 +1,46 @@
+package flightapp;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Creates executors that run each task on its own virtual thread when the runtime
+ * supports them (Java 21 and later), and on a cached pool of daemon platform
+ * threads otherwise. The app still compiles for Java 11, so virtual threads are
+ * looked up reflectively.
+ */
+public class VirtualThreads {
+
+  private VirtualThreads() {
+  }
+
+  /**
+   * Return a new executor that starts a thread per task.
+   *
+   * @param name prefix of the thread names, used when virtual threads are unavailable
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String name) {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      AtomicInteger count = new AtomicInteger();
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  /**
+   * Return true if tasks run on virtual threads.
+   */
+  public static boolean available() {
+    try {
+      Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return true;
+    } catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Queues the transactions of many AsyncQuery sessions of one InMemoryStorage at once
+ * and checks that each session runs its own in order. No database is needed.
+ */
+public class AsyncQueryTest {
+  private static final int SESSIONS = 50;
+  private static final int CAPACITY = 20;
+
+  private static final String BOOKED = "Booked flight(s), reservation ID: ";
+
+  private InMemoryStorage storage;
+
+  @Before
+  public void setUp() {
+    RouteIndex flights = new RouteIndex.Builder()
+            .add(1, 1, "AA", 10, "Seattle WA", "Boston MA", 300, CAPACITY, 500)
+            .build();
+    storage = new InMemoryStorage(flights);
+  }
+
+  @After
+  public void tearDown() {
+    storage.close();
+  }
+
+  @Test
+  public void testSessionsRunTheirTransactionsInOrder() throws Exception {
+    List<AsyncQuery> sessions = new ArrayList<>();
+    List<List<CompletableFuture<String>>> responses = new ArrayList<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      AsyncQuery q = new AsyncQuery(storage);
+      sessions.add(q);
+
+      // Each transaction depends on the ones before it, so any of them running early
+      // changes its response.
+      String username = "user" + i;
+      responses.add(Arrays.asList(
+              q.createCustomer(username, "password", 1000),
+              q.login(username, "password"),
+              q.search("Seattle WA", "Boston MA", true, 1, 1),
+              q.book(0),
+              q.reservations(),
+              q.execute("book x"),
+              q.reservations()));
+    }
+
+    Set<Integer> ids = new HashSet<>();
+    for (int i = 0; i < SESSIONS; i++) {
+      String username = "user" + i;
+      List<CompletableFuture<String>> r = responses.get(i);
+      assertEquals("Created user " + username + "\n", r.get(0).get(30, TimeUnit.SECONDS));
+      assertEquals("Logged in as " + username + "\n", r.get(1).get(30, TimeUnit.SECONDS));
+      assertTrue(r.get(2).get(30, TimeUnit.SECONDS).startsWith("Itinerary 0: 1 flight(s), 300 minutes\n"));
+
+      String booking = r.get(3).get(30, TimeUnit.SECONDS);
+      String reservations = r.get(4).get(30, TimeUnit.SECONDS);
+      if (booking.startsWith(BOOKED)) {
+        int id = Integer.parseInt(booking.substring(BOOKED.length()).trim());
+        assertTrue("reservation " + id + " was booked twice", ids.add(id));
+        // Reservations are listed numbered from 1, not by ID.
+        assertTrue(reservations, reservations.startsWith("Reservation 1 paid: false:\nID: 1 "));
+      } else {
+        assertEquals("Booking failed\n", booking);
+        assertEquals("No reservations found\n", reservations);
+      }
+
+      // A failed transaction doesn't keep the next one from running.
+      try {
+        r.get(5).get(30, TimeUnit.SECONDS);
+        fail("book x should fail");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof NumberFormatException);
+      }
+      assertEquals(reservations, r.get(6).get(30, TimeUnit.SECONDS));
+    }
+    assertEquals("every seat should be booked once", CAPACITY, ids.size());
+
+    for (AsyncQuery q : sessions) {
+      q.close();
+    }
+  }
+
+  @Test
+  public void testATransactionStartsAfterThePreviousOneFinished() throws Exception {
+    // An executor with many threads would run the transactions of a session at once if
+    // nothing ordered them.
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      AsyncQuery q = new AsyncQuery(new Query(storage), executor);
+      List<CompletableFuture<String>> responses = new ArrayList<>();
+      responses.add(q.createCustomer("user", "password", 1000));
+      responses.add(q.login("user", "password"));
+      for (int i = 0; i < 20; i++) {
+        responses.add(q.login("user", "password"));
+      }
+      assertEquals("Created user user\n", responses.get(0).get(30, TimeUnit.SECONDS));
+      assertEquals("Logged in as user\n", responses.get(1).get(30, TimeUnit.SECONDS));
+      for (CompletableFuture<String> response : responses.subList(2, responses.size())) {
+        assertEquals("User already logged in\n", response.get(30, TimeUnit.SECONDS));
+      }
+      q.close();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
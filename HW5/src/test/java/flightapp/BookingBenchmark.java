@@ -0,0 +1,69 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures booking throughput as the number of concurrent users grows.
+ *
+ * For every concurrency level each user creates an account, logs in, searches the
+ * given route and books the first itinerary, all at once with the other users.
+ * Reports successful bookings per second and how many bookings failed.
+ *
+ * Uses dbconn.properties and clears the Users, Reservations and BookedSeats tables
+ * before every level. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.BookingBenchmark
+ *       -Dexec.args="[max users] [origin] [destination] [day]"
+ */
+public class BookingBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int maxUsers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+    String origin = args.length > 1 ? args[1] : "Seattle WA";
+    String destination = args.length > 2 ? args[2] : "Boston MA";
+    int day = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+
+    ConnectionPool pool = ConnectionPool.fromDbConn(maxUsers);
+    ExecutorService threads = Executors.newFixedThreadPool(maxUsers);
+
+    System.out.println("users\tbooked\tfailed\tseconds\tbookings/s");
+    for (int users = 1; users <= maxUsers; users *= 2) {
+      new Query(pool).clearTables();
+
+      // Create and log in every user before timing the bookings.
+      List<Query> sessions = new ArrayList<>();
+      for (int i = 0; i < users; i++) {
+        Query q = new Query(pool);
+        q.transaction_createCustomer("bench" + i, "pw", 100000);
+        q.transaction_login("bench" + i, "pw");
+        q.transaction_search(origin, destination, false, day, 1);
+        sessions.add(q);
+      }
+
+      CountDownLatch start = new CountDownLatch(1);
+      List<Future<String>> results = new ArrayList<>();
+      for (Query q : sessions) {
+        results.add(threads.submit(() -> {
+          start.await();
+          return q.transaction_book(0);
+        }));
+      }
+
+      long begin = System.nanoTime();
+      start.countDown();
+      int booked = 0;
+      for (Future<String> result : results) {
+        if (result.get().startsWith("Booked flight(s)")) {
+          booked++;
+        }
+      }
+      double seconds = (System.nanoTime() - begin) / 1e9;
+
+      System.out.printf("%d\t%d\t%d\t%.3f\t%.1f%n", users, booked, users - booked, seconds, booked / seconds);
+    }
+
+    threads.shutdown();
+    pool.close();
+  }
+}
@@ -0,0 +1,305 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a BookingPipeline from many threads with a fake batch that records how it
+ * is called. No database is needed.
+ */
+public class BookingPipelineTest {
+  private static final int THREADS = 64;
+  private static final int BOOKINGS = 2000;
+  private static final int MAX_BATCH = 8;
+
+  // A caller that gets no answer in this long waits on a lane nobody leads.
+  private static final long TIMEOUT_SECONDS = 30;
+
+  private static final Query.Itinerary[] ITINERARIES = {
+      new Query.Itinerary(flight(1), null, 10, true),
+      new Query.Itinerary(flight(2), null, 10, true),
+      new Query.Itinerary(flight(1), flight(2), 20, false),
+  };
+
+  private ExecutorService pool;
+
+  // Let running count the batches of each itinerary that are being booked.
+  private final Map<Query.Itinerary, AtomicInteger> running = new ConcurrentHashMap<>();
+  private final AtomicInteger overlaps = new AtomicInteger();
+  private final AtomicInteger mixed = new AtomicInteger();
+  private final AtomicInteger largest = new AtomicInteger();
+
+  @Before
+  public void setUp() {
+    pool = Executors.newFixedThreadPool(THREADS);
+  }
+
+  @After
+  public void tearDown() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void testEachCallerGetsItsOwnResult() throws Exception {
+    BookingPipeline pipeline = new BookingPipeline(1, MAX_BATCH);
+    BookingPipeline.Batch batch = requests -> {
+      enter(requests);
+      try {
+        // Hold the lane for a while so that bookings pile up behind it.
+        Thread.sleep(1);
+        int[] results = new int[requests.size()];
+        for (int i = 0; i < results.length; i++) {
+          results[i] = id(requests.get(i).username);
+        }
+        return results;
+      } catch (InterruptedException e) {
+        throw new SQLException(e);
+      } finally {
+        exit(requests);
+      }
+    };
+
+    List<Future<Integer>> results = bookAll(pipeline, batch, BOOKINGS);
+    for (int i = 0; i < BOOKINGS; i++) {
+      assertEquals("booking " + i, i + 1, (int) results.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    assertEquals("a lane ran two batches at once", 0, overlaps.get());
+    assertEquals("a batch mixed itineraries", 0, mixed.get());
+    assertTrue("largest batch " + largest.get(), largest.get() <= MAX_BATCH);
+    assertTrue("bookings should have been batched", largest.get() > 1);
+  }
+
+  @Test
+  public void testErrorsReachOnlyTheirBatch() throws Exception {
+    BookingPipeline pipeline = new BookingPipeline(1, MAX_BATCH);
+    Set<String> failed = ConcurrentHashMap.newKeySet();
+    BookingPipeline.Batch batch = requests -> {
+      enter(requests);
+      try {
+        for (BookingPipeline.Request request : requests) {
+          int id = id(request.username);
+          if (id % 97 == 0 || id % 89 == 0) {
+            for (BookingPipeline.Request r : requests) {
+              failed.add(r.username);
+            }
+            if (id % 97 == 0) {
+              throw new SQLException("failed " + id);
+            }
+            throw new IllegalStateException("failed " + id);
+          }
+        }
+        int[] results = new int[requests.size()];
+        for (int i = 0; i < results.length; i++) {
+          results[i] = id(requests.get(i).username);
+        }
+        return results;
+      } finally {
+        exit(requests);
+      }
+    };
+
+    List<Future<Integer>> results = bookAll(pipeline, batch, BOOKINGS);
+    int errors = 0;
+    for (int i = 0; i < BOOKINGS; i++) {
+      try {
+        assertEquals("booking " + i, i + 1, (int) results.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertFalse("booking " + i + " should have failed", failed.contains("user" + (i + 1)));
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof SQLException);
+        assertTrue("booking " + i + " shouldn't have failed", failed.contains("user" + (i + 1)));
+        errors++;
+      }
+    }
+    assertEquals(failed.size(), errors);
+    assertEquals(0, overlaps.get());
+  }
+
+  @Test
+  public void testBookingThatRacesALanesRemovalIsServed() throws Exception {
+    PausingLanes lanes = new PausingLanes();
+    BookingPipeline pipeline = new BookingPipeline(0, MAX_BATCH, lanes);
+    Query.Itinerary itinerary = ITINERARIES[0];
+    Map<String, CountDownLatch> entered = new ConcurrentHashMap<>();
+    Map<String, CountDownLatch> gates = new ConcurrentHashMap<>();
+    for (String username : Arrays.asList("first", "late", "next")) {
+      entered.put(username, new CountDownLatch(1));
+      gates.put(username, new CountDownLatch(username.equals("late") ? 0 : 1));
+    }
+    BookingPipeline.Batch batch = requests -> {
+      enter(requests);
+      try {
+        String leader = requests.get(0).username;
+        entered.get(leader).countDown();
+        gates.get(leader).await();
+        int[] results = new int[requests.size()];
+        for (int i = 0; i < results.length; i++) {
+          results[i] = requests.get(i).username.hashCode();
+        }
+        return results;
+      } catch (InterruptedException e) {
+        throw new SQLException(e);
+      } finally {
+        exit(requests);
+      }
+    };
+
+    // The first booking leads the lane and holds it in its batch.
+    Future<Integer> first = pool.submit(() -> pipeline.book("first", itinerary, batch));
+    entered.get("first").await();
+
+    // The late booking looks the lane up and stops before locking it.
+    FutureTask<Integer> late = new FutureTask<>(() -> pipeline.book("late", itinerary, batch));
+    lanes.paused = new Thread(late);
+    lanes.paused.start();
+    lanes.lookedUp.await();
+
+    // The first batch finds its lane idle and removes it, and the next booking leads
+    // a new lane of the same flights.
+    gates.get("first").countDown();
+    assertEquals("first".hashCode(), (int) first.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertTrue(lanes.isEmpty());
+    Future<Integer> next = pool.submit(() -> pipeline.book("next", itinerary, batch));
+    entered.get("next").await();
+
+    // The late booking must queue behind the new lane's batch rather than lead the
+    // removed lane at the same time.
+    lanes.resume.countDown();
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (!late.isDone() && !queued(lanes, "late")) {
+      assertTrue("the late booking got stuck", System.nanoTime() < deadline);
+      Thread.sleep(1);
+    }
+    assertEquals("two batches of one lane ran at once", 0, overlaps.get());
+
+    gates.get("next").countDown();
+    assertEquals("next".hashCode(), (int) next.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals("late".hashCode(), (int) late.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertEquals(0, overlaps.get());
+    assertTrue(lanes.isEmpty());
+  }
+
+  @Test
+  public void testBookingsAreServedAsLanesComeAndGo() throws Exception {
+    // With no batch window and quick batches, lanes are removed and created again
+    // all the time, often while other bookings are joining them.
+    BookingPipeline pipeline = new BookingPipeline(0, MAX_BATCH);
+    BookingPipeline.Batch batch = requests -> {
+      enter(requests);
+      try {
+        int[] results = new int[requests.size()];
+        for (int i = 0; i < results.length; i++) {
+          results[i] = id(requests.get(i).username);
+        }
+        return results;
+      } finally {
+        exit(requests);
+      }
+    };
+
+    for (int round = 0; round < 20; round++) {
+      List<Future<Integer>> results = bookAll(pipeline, batch, BOOKINGS);
+      for (int i = 0; i < BOOKINGS; i++) {
+        assertEquals("round " + round + " booking " + i, i + 1,
+                (int) results.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      }
+    }
+    assertEquals(0, overlaps.get());
+    assertTrue(largest.get() <= MAX_BATCH);
+  }
+
+  /**
+   * Start the given number of bookings of user1, user2 and so on, spread over the
+   * itineraries, all at once.
+   */
+  private List<Future<Integer>> bookAll(BookingPipeline pipeline, BookingPipeline.Batch batch, int n) {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      String username = "user" + (i + 1);
+      Query.Itinerary itinerary = ITINERARIES[i % ITINERARIES.length];
+      results.add(pool.submit(() -> {
+        start.await();
+        return pipeline.book(username, itinerary, batch);
+      }));
+    }
+    start.countDown();
+    return results;
+  }
+
+  /**
+   * Record the start of a batch. Failing here would leave its lane led forever, so
+   * what is wrong is only counted.
+   */
+  private void enter(List<BookingPipeline.Request> requests) {
+    largest.accumulateAndGet(requests.size(), Math::max);
+    Query.Itinerary itinerary = requests.get(0).itinerary;
+    for (BookingPipeline.Request request : requests) {
+      if (request.itinerary != itinerary) {
+        mixed.incrementAndGet();
+      }
+    }
+    if (running.computeIfAbsent(itinerary, k -> new AtomicInteger()).incrementAndGet() > 1) {
+      overlaps.incrementAndGet();
+    }
+  }
+
+  private void exit(List<BookingPipeline.Request> requests) {
+    running.get(requests.get(0).itinerary).decrementAndGet();
+  }
+
+  /**
+   * Return true if the given user's booking waits in a lane of the given map.
+   */
+  private static boolean queued(Map<String, BookingPipeline.Lane> lanes, String username) {
+    for (BookingPipeline.Lane lane : lanes.values()) {
+      synchronized (lane) {
+        for (BookingPipeline.Request request : lane.queue) {
+          if (request.username.equals(username)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  private static int id(String username) {
+    return Integer.parseInt(username.substring("user".length()));
+  }
+
+  private static Query.Flight flight(int fid) {
+    return new Query.Flight(fid, 1, "AA", String.valueOf(fid), "Seattle WA", "Boston MA", 10, 100, 100);
+  }
+
+  /**
+   * Lanes that hold up the paused thread right after it first looks up a lane, until
+   * resumed.
+   */
+  private static class PausingLanes extends ConcurrentHashMap<String, BookingPipeline.Lane> {
+    volatile Thread paused;
+    final CountDownLatch lookedUp = new CountDownLatch(1);
+    final CountDownLatch resume = new CountDownLatch(1);
+
+    @Override
+    public BookingPipeline.Lane computeIfAbsent(String key,
+            Function<? super String, ? extends BookingPipeline.Lane> mappingFunction) {
+      BookingPipeline.Lane lane = super.computeIfAbsent(key, mappingFunction);
+      if (Thread.currentThread() == paused && lookedUp.getCount() > 0) {
+        lookedUp.countDown();
+        try {
+          resume.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return lane;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package flightapp;
+
+import org.junit.*;
+import org.junit.runner.*;
+import org.junit.runners.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that CommandTokenizer splits every command of the test cases, and commands
+ * with odd whitespace, quotes and numbers, the way FlightService used to: with the
+ * {@code "([^"]*)"|(\S+)} pattern after String.trim(), which is String.split("\\s+")
+ * for commands without quotes.
+ */
+@RunWith(Parameterized.class)
+public class CommandTokenizerTest {
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  /**
+   * Commands the test cases don't have.
+   */
+  private static final String[] EDGE_CASES = {
+    "",
+    "   ",
+    "\t",
+    "  login user pwd  ",
+    "\tlogin\tuser\tpwd\t",
+    "search  Seattle \t Boston WA  1 \t14  10",
+    "login user\u000Bpwd\f",
+    "\u0001quit\u0002",
+    "book\u00A01",
+    "book 2147483647",
+    "book 2147483648",
+    "book -2147483648",
+    "book -2147483649",
+    "book 99999999999999999999",
+    "book +5",
+    "book 1.5",
+    "book 0x10",
+    "book -",
+    "create \"new user\" pwd 100",
+    "create \"\" pwd 100",
+    "create \"unclosed pwd 100",
+    "create a\"b\"c \"d\"\"e\" f\"",
+  };
+
+  private final String command;
+
+  public CommandTokenizerTest(String command) {
+    this.command = command;
+  }
+
+  /**
+   * Return the commands of every test case under test.cases, followed by the edge
+   * cases.
+   */
+  @Parameterized.Parameters(name = "{index}: {0}")
+  public static Collection<String> commands() throws IOException {
+    Set<String> commands = new LinkedHashSet<>();
+    for (String pathString : System.getProperty("test.cases", "cases").split(":", -1)) {
+      Path path = Paths.get(pathString);
+      if (!Files.exists(path)) {
+        continue;
+      }
+      List<Path> files;
+      try (Stream<Path> paths = Files.walk(path, 5, FileVisitOption.FOLLOW_LINKS)) {
+        files = paths.filter(Files::isRegularFile)
+                .filter(p -> p.getFileName().toString().endsWith(".txt")).sorted()
+                .collect(Collectors.toList());
+      }
+      for (Path file : files) {
+        Scenario scenario;
+        try {
+          scenario = Scenario.parse(file.toString());
+        } catch (IllegalArgumentException e) {
+          // Not a test case, like the notes in mycases.
+          continue;
+        }
+        for (Scenario.Script script : scenario.scripts()) {
+          commands.addAll(script.commands);
+        }
+      }
+    }
+    commands.addAll(Arrays.asList(EDGE_CASES));
+    return commands;
+  }
+
+  @Test
+  public void testMatchesPattern() {
+    List<String> expected = new ArrayList<>();
+    Matcher m = TOKEN.matcher(command.trim());
+    while (m.find()) {
+      expected.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    assertEquals(expected, tokens(new CommandTokenizer().tokenize(command)));
+  }
+
+  @Test
+  public void testMatchesSplit() {
+    Assume.assumeFalse(command.contains("\""));
+    String trimmed = command.trim();
+    List<String> expected = trimmed.isEmpty() ? Collections.emptyList() : Arrays.asList(trimmed.split("\\s+"));
+    assertEquals(expected, tokens(new CommandTokenizer().tokenize(command)));
+  }
+
+  @Test
+  public void testTokenEquals() {
+    CommandTokenizer tokenizer = new CommandTokenizer().tokenize(command);
+    for (int i = 0; i < tokenizer.count(); i++) {
+      String token = tokenizer.token(i);
+      assertTrue(tokenizer.tokenEquals(i, token));
+      assertFalse(tokenizer.tokenEquals(i, token + "x"));
+      if (!token.isEmpty()) {
+        // A string of the same length that differs in its last character.
+        char last = token.charAt(token.length() - 1);
+        assertFalse(tokenizer.tokenEquals(i, token.substring(0, token.length() - 1) + (char) (last + 1)));
+      }
+    }
+  }
+
+  @Test
+  public void testParseInt() {
+    CommandTokenizer tokenizer = new CommandTokenizer().tokenize(command);
+    for (int i = 0; i < tokenizer.count(); i++) {
+      Integer expected;
+      try {
+        expected = Integer.parseInt(tokenizer.token(i));
+      } catch (NumberFormatException e) {
+        expected = null;
+      }
+      Integer actual;
+      try {
+        actual = tokenizer.parseInt(i);
+      } catch (NumberFormatException e) {
+        actual = null;
+      }
+      assertEquals("token " + i, expected, actual);
+    }
+  }
+
+  @Test
+  public void testReadCommand() throws IOException {
+    // The command ended by each kind of line end, with an empty line before the last.
+    Reader in = new StringReader(command + "\n" + command + "\r\n" + "\n" + command + "\r");
+    List<String> expected = tokens(new CommandTokenizer().tokenize(command));
+    CommandTokenizer tokenizer = new CommandTokenizer();
+    assertTrue(tokenizer.readCommand(in));
+    assertEquals(expected, tokens(tokenizer));
+    assertTrue(tokenizer.readCommand(in));
+    assertEquals(expected, tokens(tokenizer));
+    assertTrue(tokenizer.readCommand(in));
+    assertEquals(Collections.emptyList(), tokens(tokenizer));
+    assertTrue(tokenizer.readCommand(in));
+    assertEquals(expected, tokens(tokenizer));
+    assertFalse(tokenizer.readCommand(in));
+  }
+
+  private static List<String> tokens(CommandTokenizer tokenizer) {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < tokenizer.count(); i++) {
+      tokens.add(tokenizer.token(i));
+    }
+    return tokens;
+  }
+}
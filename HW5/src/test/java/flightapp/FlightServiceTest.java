@@ -16,6 +16,10 @@ import static org.junit.Assert.assertTrue;
 
 /**
  * Autograder for the transaction assignment
+ *
+ * Runs the cases against the database of dbconn.properties, or against an
+ * InMemoryStorage of the flights in flightapp.flights_file when run with
+ * -Dflightapp.storage=memory, which Maven does after the database run.
  */
 @RunWith(Parameterized.class)
 public class FlightServiceTest {
@@ -35,15 +39,21 @@ public class FlightServiceTest {
   /**
    * Denotes a comment
    */
-  static final String COMMENTS = "#";
+  static final String COMMENTS = Scenario.COMMENTS;
   /**
    * Denotes information mode change
    */
-  static final String DELIMITER = "*";
+  static final String DELIMITER = Scenario.DELIMITER;
   /**
    * Denotes alternate result
    */
-  static final String SEPARATOR = "|";
+  static final String SEPARATOR = Scenario.SEPARATOR;
+
+  /**
+   * Storage the users of every case share when flightapp.storage is "memory", cleared
+   * before each case. When null, each user connects to the database on their own.
+   */
+  private static Storage storage = null;
 
   private static String serverURL = null;
   private static String dbName = null;
@@ -88,7 +98,7 @@ public class FlightServiceTest {
     private List<String> results; // the expected results from those commands
 
     public User(List<String> cmds, List<String> results) throws IOException, SQLException {
-      this.q = new Query(serverURL, dbName, adminName, password);
+      this.q = storage == null ? new Query(serverURL, dbName, adminName, password) : new Query(storage);
       this.cmds = cmds;
       this.results = results;
     }
@@ -121,77 +131,9 @@ public class FlightServiceTest {
    */
   static List<User> parse(String filename) throws IOException, SQLException {
     List<User> users = new ArrayList<>();
-    List<String> cmds = new ArrayList<>();
-    List<String> results = new ArrayList<>();
-    String r = "";
-    boolean isCmd = true;
-    BufferedReader reader = new BufferedReader(new FileReader(filename));
-    String l;
-    int lineNumber = 0;
-    while ((l = reader.readLine()) != null) {
-      lineNumber++;
-
-      // Skip comment lines
-      if (l.startsWith(COMMENTS)) {
-        continue;
-
-        // Switch between recording commands and recording results
-      } else if (l.startsWith(DELIMITER)) {
-        if (isCmd) {
-          isCmd = false;
-        } else {
-          // Result recordings finished for a user so user is fully specified
-          results.add(r);
-          users.add(new User(cmds, results));
-          cmds = new ArrayList<>();
-          results = new ArrayList<>();
-          r = "";
-          isCmd = true;
-        }
-
-        // Record an alternate outcome result
-      } else if (l.startsWith(SEPARATOR)) {
-        if (isCmd) {
-          reader.close();
-          throw new IllegalArgumentException(
-                  "ERROR: input file is malformatted on line: " + lineNumber);
-        } else {
-          results.add(r);
-          r = "";
-        }
-
-        // Build command list or result string
-      } else {
-        // Ignore trailing comments
-        l = l.split(COMMENTS, 2)[0];
-        // Add new command or build current result
-        if (isCmd) {
-          cmds.add(l);
-        } else {
-          r = r + l + "\n";
-        }
-      }
-    }
-    reader.close();
-
-    // Everything should be parsed by now and put into user objects
-    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0) {
-      throw new IllegalArgumentException(String.format(
-              "ERROR: input file is malformatted, extra information found #commands=%s, len(result)=%s, #results=%s",
-              cmds.size(), r.length(), results.size()));
+    for (Scenario.Script script : Scenario.parse(filename).scripts()) {
+      users.add(new User(script.commands, script.results));
     }
-
-    // check that all users have the same number of possible scenarios
-    int n = users.get(0).results().size();
-    for (int i = 1; i < users.size(); ++i) {
-      int m = users.get(i).results().size();
-      if (m != n) {
-        throw new IllegalArgumentException(String.format(
-                "ERROR: input file is malformatted, user %s should have %s possible results rather than %s",
-                i, n, m));
-      }
-    }
-
     return users;
   }
 
@@ -202,6 +144,16 @@ public class FlightServiceTest {
   public static void setup() {
     System.out.println("running setup");
     pool = Executors.newFixedThreadPool(MAX_USERS);
+    if ("memory".equals(System.getProperty("flightapp.storage"))) {
+      try {
+        storage = InMemoryStorage.fromSystemProperties();
+      } catch (IOException e) {
+        System.err.println("Failed to load the flights of the in-memory storage");
+        e.printStackTrace();
+        System.exit(1);
+      }
+      return;
+    }
     initCredential();
     try {
       Connection conn = serverURL == null ? Query.openConnectionFromDbConn()
@@ -217,6 +169,13 @@ public class FlightServiceTest {
     }
   }
 
+  @AfterClass
+  public static void teardown() {
+    if (storage != null) {
+      storage.close();
+    }
+  }
+
   /**
    * A file that will be parsed as a test case scenario
    */
@@ -263,8 +222,8 @@ public class FlightServiceTest {
 
   @Before
   public void clearDB() throws SQLException, IOException {
-    Query query =
-            serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
+    Query query = storage != null ? new Query(storage)
+            : serverURL == null ? new Query() : new Query(serverURL, dbName, adminName, password);
     query.clearTables();
     query.closeConnection();
   }
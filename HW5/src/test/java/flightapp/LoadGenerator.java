@@ -0,0 +1,329 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.*;
+import org.HdrHistogram.*;
+
+/**
+ * Replays the test case scenarios with many synthetic users at once to find the
+ * concurrency level where the application stops keeping up.
+ *
+ * Scenarios are copied until there are as many users as asked for. Every copy gets
+ * its own usernames (the scenario's names with a suffix unique to the copy) and its
+ * own reservation IDs (the n-th reservation a scenario pays or cancels is the n-th
+ * one the copy booked), so copies don't interfere with each other. Commands from all
+ * users are started at the target rate; latencies are measured from when a command
+ * should have started, so a saturated server shows up as growing latency rather than
+ * a slower command stream.
+ *
+ * For every concurrency level, reports latency percentiles and failures per command
+ * type, the deadlocks that were retried and, where the database shows them, the lock
+ * waits. Failures include the ones the scenarios expect, so compare failure rates
+ * across levels rather than against zero. Lock waits tell -Dflightapp.read_isolation
+ * settings apart under the same load.
+ *
+ * Uses dbconn.properties and clears the tables before every level. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=flightapp.LoadGenerator
+ *       -Dexec.args="[cases path] [users,users,...] [commands/s, 0 for unpaced]"
+ */
+public class LoadGenerator {
+  // Usernames are varchar(20)
+  private static final int MAX_USERNAME = 20;
+
+  private static final String BOOKED = "Booked flight(s), reservation ID: ";
+
+  // Lock waits so far; Azure SQL Database has per-database wait statistics, SQL Server
+  // only server-wide ones.
+  private static final String[] LOCK_WAITS = {
+      "SELECT SUM(waiting_tasks_count), SUM(wait_time_ms) FROM sys.dm_db_wait_stats WHERE wait_type LIKE 'LCK_M_%'",
+      "SELECT SUM(waiting_tasks_count), SUM(wait_time_ms) FROM sys.dm_os_wait_stats WHERE wait_type LIKE 'LCK_M_%'" };
+
+  private final List<Scenario> scenarios;
+  private final ConnectionPool pool;
+  private final double rate;
+
+  private final Map<String, Histogram> latencies = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> failures = new ConcurrentHashMap<>();
+  private final LongAdder errors = new LongAdder();
+  private final AtomicLong nextStart = new AtomicLong();
+
+  /**
+   * Class constructor.
+   *
+   * @param scenarios scenarios to replay
+   * @param pool      connection pool shared by the users
+   * @param rate      commands started per second by all users together, or 0 for as fast as possible
+   */
+  public LoadGenerator(List<Scenario> scenarios, ConnectionPool pool, double rate) {
+    this.scenarios = scenarios;
+    this.pool = pool;
+    this.rate = rate;
+  }
+
+  public static void main(String[] args) throws Exception {
+    String cases = args.length > 0 ? args[0] : "cases/no_transaction";
+    String levels = args.length > 1 ? args[1] : "10,100,1000,2000,5000";
+    double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+
+    List<Scenario> scenarios = new ArrayList<>();
+    for (String file : files(cases)) {
+      try {
+        scenarios.add(Scenario.parse(file));
+      } catch (RuntimeException e) {
+        System.err.println("Skipping " + file + ": " + e.getMessage());
+      }
+    }
+
+    ConnectionPool pool = ConnectionPool.fromDbConn();
+    for (String level : levels.split(",")) {
+      new Query(pool).clearTables();
+      new LoadGenerator(scenarios, pool, rate).run(Integer.parseInt(level.trim()), System.out);
+    }
+    pool.close();
+  }
+
+  /**
+   * Replay copies of the scenarios with at least the given number of users, all at
+   * once, and print the results.
+   */
+  public void run(int users, PrintStream out) throws InterruptedException {
+    List<Replay> replays = new ArrayList<>();
+    for (int copy = 0; replays.size() < users; copy++) {
+      Copy c = new Copy(copy);
+      for (Scenario.Script script : scenarios.get(copy % scenarios.size()).scripts()) {
+        replays.add(new Replay(c, script.commands));
+      }
+    }
+
+    ExecutorService threads = VirtualThreads.newThreadPerTaskExecutor("flightapp-load");
+    CountDownLatch start = new CountDownLatch(1);
+    for (Replay replay : replays) {
+      threads.execute(() -> {
+        try {
+          start.await();
+          replay.run();
+        } catch (Exception e) {
+          errors.increment();
+          e.printStackTrace();
+        }
+      });
+    }
+
+    long deadlocks = Query.deadlocks();
+    long[] lockWaits = lockWaits();
+    long begin = System.nanoTime();
+    nextStart.set(begin);
+    start.countDown();
+    threads.shutdown();
+    threads.awaitTermination(1, TimeUnit.DAYS);
+    double seconds = (System.nanoTime() - begin) / 1e9;
+    long[] lockWaitsAfter = lockWaits();
+
+    long commands = latencies.values().stream().mapToLong(Histogram::getTotalCount).sum();
+    out.printf("users: %d commands: %d seconds: %.1f commands/s: %.1f deadlock retries: %d errors: %d%n",
+        replays.size(), commands, seconds, commands / seconds, Query.deadlocks() - deadlocks, errors.sum());
+    if (lockWaits != null && lockWaitsAfter != null) {
+      out.printf("lock waits: %d lock wait ms: %d%n", lockWaitsAfter[0] - lockWaits[0],
+          lockWaitsAfter[1] - lockWaits[1]);
+    }
+    out.println("command\tcount\tfailed\tp50 ms\tp90 ms\tp99 ms\tp99.9 ms\tmax ms");
+    for (String command : new TreeSet<>(latencies.keySet())) {
+      Histogram h = latencies.get(command);
+      out.printf("%s\t%d\t%d\t%.2f\t%.2f\t%.2f\t%.2f\t%.2f%n", command, h.getTotalCount(),
+          failures.get(command).sum(), h.getValueAtPercentile(50) / 1e3, h.getValueAtPercentile(90) / 1e3,
+          h.getValueAtPercentile(99) / 1e3, h.getValueAtPercentile(99.9) / 1e3, h.getMaxValue() / 1e3);
+    }
+    out.println();
+  }
+
+  /**
+   * Return the number of lock waits and their total time in milliseconds so far, or null
+   * if the database doesn't let us see them (they need VIEW SERVER STATE or VIEW DATABASE
+   * STATE permission).
+   */
+  private long[] lockWaits() {
+    for (String sql : LOCK_WAITS) {
+      ConnectionPool.PooledConnection pooled = null;
+      try {
+        pooled = pool.borrow();
+        try (Statement statement = pooled.getConnection().createStatement();
+             ResultSet rs = statement.executeQuery(sql)) {
+          rs.next();
+          return new long[] { rs.getLong(1), rs.getLong(2) };
+        }
+      } catch (SQLException e) {
+        // Try the next view.
+      } finally {
+        if (pooled != null) {
+          pool.release(pooled);
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the time a command may start, spacing commands evenly at the target rate.
+   */
+  private long scheduleStart() {
+    long now = System.nanoTime();
+    if (rate <= 0) {
+      return now;
+    }
+
+    long interval = (long) (1e9 / rate);
+    while (true) {
+      long next = nextStart.get();
+      long start = Math.max(next, now);
+      if (nextStart.compareAndSet(next, start + interval)) {
+        return start;
+      }
+    }
+  }
+
+  private void record(String command, long micros, boolean failed) {
+    latencies.computeIfAbsent(command, c -> new ConcurrentHistogram(TimeUnit.HOURS.toMicros(1), 3))
+        .recordValue(Math.min(micros, TimeUnit.HOURS.toMicros(1)));
+    LongAdder count = failures.computeIfAbsent(command, c -> new LongAdder());
+    if (failed) {
+      count.increment();
+    }
+  }
+
+  /**
+   * Return true if the response reports that the command did not do what was asked.
+   */
+  private static boolean isFailure(String response) {
+    return response.startsWith("Failed") || response.contains(" failed") || response.startsWith("Cannot")
+        || response.startsWith("You cannot") || response.startsWith("No such") || response.startsWith("Error");
+  }
+
+  /**
+   * One copy of a scenario, whose users share usernames and reservations.
+   */
+  private static class Copy {
+    private final String suffix;
+    private final List<Integer> reservations = new ArrayList<>();
+
+    Copy(int id) {
+      this.suffix = "_" + Integer.toString(id, 36);
+    }
+
+    /**
+     * Return this copy's name for the given scenario username.
+     */
+    String username(String username) {
+      String base = username.toLowerCase();
+      int length = Math.min(base.length(), MAX_USERNAME - suffix.length());
+      return base.substring(0, length) + suffix;
+    }
+
+    synchronized void booked(int reservationId) {
+      reservations.add(reservationId);
+    }
+
+    /**
+     * Return the ID of this copy's n-th reservation, or an ID no one has if it has fewer.
+     */
+    synchronized String reservation(String n) {
+      try {
+        int i = Integer.parseInt(n);
+        return String.valueOf(i >= 1 && i <= reservations.size() ? reservations.get(i - 1) : -i);
+      } catch (NumberFormatException e) {
+        return n;
+      }
+    }
+  }
+
+  /**
+   * One synthetic user running its scenario's commands on a session of its own.
+   */
+  private class Replay {
+    private final Copy copy;
+    private final List<String> commands;
+
+    Replay(Copy copy, List<String> commands) {
+      this.copy = copy;
+      this.commands = commands;
+    }
+
+    void run() throws Exception {
+      Query q = new Query(pool);
+      for (String command : commands) {
+        String[] tokens = command.trim().split("\\s+");
+        String name = tokens[0].toLowerCase();
+        if (name.isEmpty() || name.equals("quit")) {
+          continue;
+        }
+
+        long start = scheduleStart();
+        long wait = start - System.nanoTime();
+        if (wait > 0) {
+          LockSupport.parkNanos(wait);
+        }
+
+        String response;
+        try {
+          response = FlightService.execute(q, rewrite(name, tokens, command));
+        } catch (RuntimeException e) {
+          errors.increment();
+          response = "Error: " + e;
+        }
+        record(name, (System.nanoTime() - start) / 1000, isFailure(response));
+
+        if (response.startsWith(BOOKED)) {
+          copy.booked(Integer.parseInt(response.substring(BOOKED.length()).trim()));
+        }
+      }
+    }
+
+    /**
+     * Return the command with this copy's usernames and reservation IDs.
+     */
+    private String rewrite(String name, String[] tokens, String command) {
+      if (tokens.length < 2) {
+        return command;
+      }
+      switch (name) {
+        case "create":
+        case "login":
+          tokens[1] = copy.username(tokens[1]);
+          return String.join(" ", tokens);
+        case "pay":
+        case "cancel":
+          tokens[1] = copy.reservation(tokens[1]);
+          return String.join(" ", tokens);
+        default:
+          return command;
+      }
+    }
+  }
+
+  /**
+   * Return the scenario files in the given colon separated files and directories.
+   */
+  private static List<String> files(String paths) throws IOException {
+    List<String> files = new ArrayList<>();
+    for (String path : paths.split(":")) {
+      Path p = Paths.get(path);
+      if (Files.isDirectory(p)) {
+        try (Stream<Path> walk = Files.walk(p, 5, FileVisitOption.FOLLOW_LINKS)) {
+          walk.filter(Files::isRegularFile)
+              .filter(f -> f.getFileName().toString().endsWith(".txt"))
+              .sorted()
+              .forEach(f -> files.add(f.toString()));
+        }
+      } else {
+        files.add(path);
+      }
+    }
+    return files;
+  }
+}
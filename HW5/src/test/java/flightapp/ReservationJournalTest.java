@@ -0,0 +1,255 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of how a ReservationJournal recovers when it is opened again, by writing
+ * records, damaging the segment files the way a crash could and reopening it. No
+ * database is needed.
+ */
+public class ReservationJournalTest {
+  // Small enough for a few records to fill a segment.
+  private static final int SEGMENT_SIZE = 64;
+
+  private Path dir;
+  private ReservationJournal journal;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = Files.createTempDirectory("journal");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  @Test
+  public void testReadsBackAcrossSegments() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    List<String> written = append("first", "second", "third", "fourth", "fifth", "sixth", "seventh");
+    journal.sync();
+    assertTrue("records should fill several segments", segmentFiles().size() > 1);
+    assertEquals(written, readAll(0));
+
+    reopen(0);
+    assertEquals(written, readAll(0));
+  }
+
+  @Test
+  public void testSyncMakesAppendsDurable() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    long end = journal.append(bytes("booked"));
+    journal.sync();
+    assertTrue(journal.synced() >= end);
+  }
+
+  @Test
+  public void testTornTailIsDropped() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    long first = journal.append(bytes("first"));
+    journal.append(bytes("second"));
+    journal.sync();
+
+    // Damage the payload of the second record, so that its CRC no longer matches.
+    corrupt(first + 8);
+
+    reopen(0);
+    assertEquals(Arrays.asList("first"), readAll(0));
+    assertEquals(first, journal.synced());
+
+    // New records take the place of the torn one.
+    journal.append(bytes("again"));
+    journal.sync();
+    reopen(0);
+    assertEquals(Arrays.asList("first", "again"), readAll(0));
+  }
+
+  @Test
+  public void testRecordsPastATornOneAreCleared() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    long first = journal.append(bytes("first"));
+    long second = journal.append(bytes("second"));
+    journal.append(bytes("third"));
+    journal.sync();
+    corrupt(first + 8);
+
+    reopen(0);
+    assertEquals(Arrays.asList("first"), readAll(0));
+    byte[] segment = Files.readAllBytes(segmentFiles().get(0));
+    for (int i = (int) first; i < segment.length; i++) {
+      assertEquals("byte " + i + " past the end should be zero", 0, segment[i]);
+    }
+
+    // The intact third record must not come back once a shorter record fills the
+    // torn one's place.
+    journal.append(bytes("x"));
+    journal.sync();
+    reopen(0);
+    assertEquals(Arrays.asList("first", "x"), readAll(0));
+    assertTrue(journal.synced() < second);
+  }
+
+  @Test
+  public void testSegmentsAfterAMissingOneAreDropped() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    List<String> written = append("first", "second", "third", "fourth", "fifth", "sixth", "seventh",
+        "eighth", "ninth", "tenth");
+    journal.sync();
+    List<Path> files = segmentFiles();
+    assertTrue("records should fill at least three segments", files.size() >= 3);
+    journal.close();
+    journal = null;
+
+    // The rollover marker at the end of the first segment leads to the second, which
+    // is gone, so nothing after the first segment can be reached.
+    Files.delete(files.get(1));
+    reopen(0);
+    List<String> read = readAll(0);
+    assertEquals(written.subList(0, read.size()), read);
+    assertTrue(read.size() < written.size());
+    assertEquals(SEGMENT_SIZE, journal.synced());
+    for (Path file : files.subList(2, files.size())) {
+      assertFalse(file + " should be deleted", Files.exists(file));
+    }
+
+    // Appends go on in an empty second segment.
+    journal.append(bytes("next"));
+    journal.sync();
+    reopen(0);
+    assertEquals(Arrays.asList("next"), readAll(SEGMENT_SIZE));
+  }
+
+  @Test
+  public void testStartsOverWhenTheJournalEndsBeforeTheCheckpoint() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    long end = journal.append(bytes("first"));
+    journal.sync();
+
+    // The database applied records this journal doesn't hold, say of a journal that
+    // was lost, so new records must come after them.
+    long checkpoint = end + 3 * SEGMENT_SIZE;
+    reopen(checkpoint);
+    long restart = (checkpoint + SEGMENT_SIZE - 1) / SEGMENT_SIZE * SEGMENT_SIZE;
+    assertEquals(restart, journal.first());
+    assertEquals(restart, journal.synced());
+    assertEquals(1, segmentFiles().size());
+
+    journal.append(bytes("next"));
+    journal.sync();
+    assertEquals(Arrays.asList("next"), readAll(checkpoint));
+  }
+
+  @Test
+  public void testRecordsPastTheCheckpointAreReadOnceAfterARestart() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    append("first", "second", "third", "fourth", "fifth", "sixth");
+    journal.sync();
+
+    // Apply the first records the way JournaledStorage does, checkpoint and release.
+    ReservationJournal.Reader reader = journal.reader(journal.first());
+    List<String> applied = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      applied.add(string(reader.next(journal.synced())));
+    }
+    long checkpoint = reader.position();
+    journal.release(checkpoint);
+    assertTrue("the first segment should be released", journal.first() > 0);
+
+    journal.append(bytes("seventh"));
+    journal.sync();
+    reopen(checkpoint);
+    assertTrue(journal.first() <= checkpoint);
+    applied.addAll(readAll(checkpoint));
+    assertEquals(Arrays.asList("first", "second", "third", "fourth", "fifth", "sixth", "seventh"), applied);
+  }
+
+  @Test
+  public void testReleaseDeletesAppliedSegments() throws IOException {
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, 0);
+    append("first", "second", "third", "fourth", "fifth", "sixth", "seventh");
+    journal.sync();
+    int before = segmentFiles().size();
+
+    journal.release(journal.synced());
+    assertEquals(1, segmentFiles().size());
+    assertTrue(before > 1);
+    assertEquals(journal.synced() / SEGMENT_SIZE * SEGMENT_SIZE, journal.first());
+  }
+
+  private List<String> append(String... records) throws IOException {
+    for (String record : records) {
+      journal.append(bytes(record));
+    }
+    return Arrays.asList(records);
+  }
+
+  private List<String> readAll(long from) throws IOException {
+    List<String> records = new ArrayList<>();
+    ReservationJournal.Reader reader = journal.reader(Math.max(from, journal.first()));
+    byte[] record;
+    while ((record = reader.next(journal.synced())) != null) {
+      records.add(string(record));
+    }
+    return records;
+  }
+
+  private void reopen(long start) throws IOException {
+    if (journal != null) {
+      journal.close();
+    }
+    journal = ReservationJournal.open(dir, SEGMENT_SIZE, start);
+  }
+
+  /**
+   * Flip the byte at the given position in the journal's segment files, closing it first.
+   */
+  private void corrupt(long position) throws IOException {
+    journal.close();
+    journal = null;
+    Path file = segmentFiles().get((int) (position / SEGMENT_SIZE));
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer b = ByteBuffer.allocate(1);
+      channel.read(b, position % SEGMENT_SIZE);
+      b.flip();
+      b.put(0, (byte) ~b.get(0));
+      channel.write(b, position % SEGMENT_SIZE);
+    }
+  }
+
+  private List<Path> segmentFiles() throws IOException {
+    List<Path> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*.journal")) {
+      for (Path file : stream) {
+        files.add(file);
+      }
+    }
+    Collections.sort(files);
+    return files;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static String string(byte[] b) {
+    return new String(b, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,214 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the itineraries RouteIndex finds in a small random graph of flights with
+ * every itinerary enumerated by brute force.
+ */
+public class RouteIndexTest {
+  private static final String[] CITIES = {
+    "Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Austin TX", "Miami FL", "Portland OR"
+  };
+  private static final int DAYS = 2;
+  private static final int FLIGHTS = 160;
+
+  private static final int[] COUNTS = { 1, 3, 10, 1000 };
+
+  private List<Query.Flight> flights;
+  private RouteIndex index;
+
+  @Before
+  public void setUp() {
+    Random random = new Random(344);
+    flights = new ArrayList<>();
+    RouteIndex.Builder builder = new RouteIndex.Builder();
+    for (int fid = 1; fid <= FLIGHTS; fid++) {
+      int origin = random.nextInt(CITIES.length);
+      int dest = (origin + 1 + random.nextInt(CITIES.length - 1)) % CITIES.length;
+      int day = 1 + random.nextInt(DAYS);
+      // Few distinct times, so that many itineraries tie and are ordered by fid.
+      int time = 60 * (1 + random.nextInt(8));
+      builder.add(fid, day, "AA", fid, CITIES[origin], CITIES[dest], time, 10, 100);
+      flights.add(new Query.Flight(fid, day, "AA", String.valueOf(fid), CITIES[origin], CITIES[dest], time, 10,
+              100));
+    }
+    index = builder.build();
+  }
+
+  @Test
+  public void testOneHopsMatchBruteForce() {
+    for (String origin : CITIES) {
+      for (String dest : CITIES) {
+        for (int day = 1; day <= DAYS; day++) {
+          for (int count : COUNTS) {
+            List<String> expected = bruteForce(origin, dest, day, 2, 0, count);
+            assertEquals(origin + " to " + dest + " on " + day + ", " + count, expected,
+                    describe(index.getConnectingFlights(new ArrayList<>(), count, origin, dest, day, 2, 0)));
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testThreeLegsMatchBruteForce() {
+    checkAgainstBruteForce(3, 0);
+  }
+
+  @Test
+  public void testFourLegsMatchBruteForce() {
+    checkAgainstBruteForce(4, 0);
+  }
+
+  @Test
+  public void testMinimumConnectionTimeMatchesBruteForce() {
+    // Long enough that the day leaves room for only some of the itineraries.
+    checkAgainstBruteForce(3, 300);
+    checkAgainstBruteForce(4, 180);
+  }
+
+  @Test
+  public void testItinerariesVisitNoCityTwice() {
+    for (String origin : CITIES) {
+      for (String dest : CITIES) {
+        for (Query.Itinerary itinerary : index.getConnectingFlights(new ArrayList<>(), 1000, origin, dest, 1, 4,
+                0)) {
+          // Only a round trip comes back to where it started, at its end.
+          Set<String> cities = new HashSet<>();
+          cities.add(itinerary.flights[0].originCity);
+          for (int i = 0; i < itinerary.flights.length - 1; i++) {
+            assertTrue(describe(itinerary), cities.add(itinerary.flights[i].destCity));
+          }
+          Query.Flight last = itinerary.flights[itinerary.flights.length - 1];
+          assertEquals(dest, last.destCity);
+          assertTrue(describe(itinerary), origin.equals(dest) || cities.add(last.destCity));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testUnknownCitiesFindNothing() {
+    assertTrue(index.getConnectingFlights(new ArrayList<>(), 10, "Nowhere", "Boston MA", 1, 3, 0).isEmpty());
+    assertTrue(index.getConnectingFlights(new ArrayList<>(), 10, "Seattle WA", "Nowhere", 1, 3, 0).isEmpty());
+    assertTrue(index.getConnectingFlights(new ArrayList<>(), 0, "Seattle WA", "Boston MA", 1, 3, 0).isEmpty());
+  }
+
+  private void checkAgainstBruteForce(int maxLegs, int minConnection) {
+    boolean found = false;
+    for (String origin : CITIES) {
+      for (String dest : CITIES) {
+        for (int day = 1; day <= DAYS; day++) {
+          for (int count : COUNTS) {
+            List<String> expected = bruteForce(origin, dest, day, maxLegs, minConnection, count);
+            found |= expected.stream().anyMatch(s -> s.split(",").length == maxLegs + 1);
+            assertEquals(origin + " to " + dest + " on " + day + ", " + count, expected,
+                    describe(index.getConnectingFlights(new ArrayList<>(), count, origin, dest, day, maxLegs,
+                            minConnection)));
+          }
+        }
+      }
+    }
+    assertTrue("the graph should have itineraries of " + maxLegs + " flights", found);
+  }
+
+  /**
+   * Return the first count itineraries of 2 to maxLegs flights of every one there is,
+   * described by describe().
+   */
+  private List<String> bruteForce(String origin, String dest, int day, int maxLegs, int minConnection,
+          int count) {
+    List<List<Query.Flight>> all = new ArrayList<>();
+    Deque<Query.Flight> path = new ArrayDeque<>();
+    Set<String> visited = new HashSet<>();
+    visited.add(origin);
+    extend(origin, dest, day, maxLegs, visited, path, all);
+
+    List<List<Query.Flight>> kept = new ArrayList<>();
+    for (List<Query.Flight> itinerary : all) {
+      int connections = itinerary.size() - 1;
+      if (minConnection == 0 || time(itinerary) + connections * minConnection <= 24 * 60) {
+        kept.add(itinerary);
+      }
+    }
+
+    // By total time, then by the fids in order.
+    kept.sort((a, b) -> {
+      if (time(a) != time(b)) {
+        return Integer.compare(time(a), time(b));
+      }
+      for (int i = 0; i < Math.min(a.size(), b.size()); i++) {
+        if (a.get(i).fid != b.get(i).fid) {
+          return Integer.compare(a.get(i).fid, b.get(i).fid);
+        }
+      }
+      return Integer.compare(a.size(), b.size());
+    });
+
+    List<String> described = new ArrayList<>();
+    for (List<Query.Flight> itinerary : kept.subList(0, Math.min(count, kept.size()))) {
+      described.add(describe(itinerary, time(itinerary)));
+    }
+    return described;
+  }
+
+  private void extend(String city, String dest, int day, int maxLegs, Set<String> visited,
+          Deque<Query.Flight> path, List<List<Query.Flight>> all) {
+    if (path.size() == maxLegs) {
+      return;
+    }
+    for (Query.Flight flight : flights) {
+      if (flight.dayOfMonth != day || !flight.originCity.equals(city)) {
+        continue;
+      }
+      path.addLast(flight);
+      if (flight.destCity.equals(dest)) {
+        // The destination may be the origin, as in the one-hop query.
+        if (path.size() >= 2) {
+          all.add(new ArrayList<>(path));
+        }
+      } else if (!visited.contains(flight.destCity)) {
+        visited.add(flight.destCity);
+        extend(flight.destCity, dest, day, maxLegs, visited, path, all);
+        visited.remove(flight.destCity);
+      }
+      path.removeLast();
+    }
+  }
+
+  private static int time(List<Query.Flight> itinerary) {
+    int time = 0;
+    for (Query.Flight flight : itinerary) {
+      time += flight.time;
+    }
+    return time;
+  }
+
+  private static List<String> describe(List<Query.Itinerary> itineraries) {
+    List<String> described = new ArrayList<>();
+    for (Query.Itinerary itinerary : itineraries) {
+      described.add(describe(itinerary));
+    }
+    return described;
+  }
+
+  private static String describe(Query.Itinerary itinerary) {
+    return describe(Arrays.asList(itinerary.flights), itinerary.flightTime);
+  }
+
+  /**
+   * Return the itinerary's total time followed by its fids, separated by commas.
+   */
+  private static String describe(List<Query.Flight> flights, int time) {
+    StringBuilder sb = new StringBuilder().append(time);
+    for (Query.Flight flight : flights) {
+      sb.append(',').append(flight.fid);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,138 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A parsed test case scenario: the commands of each user and the outputs each user
+ * may produce, one per possible outcome.
+ *
+ * Used by the autograder to check outputs and by the load generator to replay
+ * scenarios at scale.
+ */
+public class Scenario {
+  /**
+   * Denotes a comment
+   */
+  static final String COMMENTS = "#";
+  /**
+   * Denotes information mode change
+   */
+  static final String DELIMITER = "*";
+  /**
+   * Denotes alternate result
+   */
+  static final String SEPARATOR = "|";
+
+  /**
+   * The commands of one user and that user's possible results.
+   */
+  static class Script {
+    final List<String> commands;
+    final List<String> results;
+
+    Script(List<String> commands, List<String> results) {
+      this.commands = commands;
+      this.results = results;
+    }
+  }
+
+  private final String filename;
+  private final List<Script> scripts;
+
+  private Scenario(String filename, List<Script> scripts) {
+    this.filename = filename;
+    this.scripts = scripts;
+  }
+
+  public String filename() {
+    return filename;
+  }
+
+  public List<Script> scripts() {
+    return scripts;
+  }
+
+  /**
+   * Parse the input test case. Format expected is
+   *
+   * @param filename test case's path and file name
+   * @return the commands to run and expected results of every user
+   * @throws IOException
+   */
+  static Scenario parse(String filename) throws IOException {
+    List<Script> scripts = new ArrayList<>();
+    List<String> cmds = new ArrayList<>();
+    List<String> results = new ArrayList<>();
+    String r = "";
+    boolean isCmd = true;
+    BufferedReader reader = new BufferedReader(new FileReader(filename));
+    String l;
+    int lineNumber = 0;
+    while ((l = reader.readLine()) != null) {
+      lineNumber++;
+
+      // Skip comment lines
+      if (l.startsWith(COMMENTS)) {
+        continue;
+
+        // Switch between recording commands and recording results
+      } else if (l.startsWith(DELIMITER)) {
+        if (isCmd) {
+          isCmd = false;
+        } else {
+          // Result recordings finished for a user so user is fully specified
+          results.add(r);
+          scripts.add(new Script(cmds, results));
+          cmds = new ArrayList<>();
+          results = new ArrayList<>();
+          r = "";
+          isCmd = true;
+        }
+
+        // Record an alternate outcome result
+      } else if (l.startsWith(SEPARATOR)) {
+        if (isCmd) {
+          reader.close();
+          throw new IllegalArgumentException(
+                  "ERROR: input file is malformatted on line: " + lineNumber);
+        } else {
+          results.add(r);
+          r = "";
+        }
+
+        // Build command list or result string
+      } else {
+        // Ignore trailing comments
+        l = l.split(COMMENTS, 2)[0];
+        // Add new command or build current result
+        if (isCmd) {
+          cmds.add(l);
+        } else {
+          r = r + l + "\n";
+        }
+      }
+    }
+    reader.close();
+
+    // Everything should be parsed by now and put into scripts
+    if (cmds.size() > 0 || r.length() > 0 || results.size() > 0) {
+      throw new IllegalArgumentException(String.format(
+              "ERROR: input file is malformatted, extra information found #commands=%s, len(result)=%s, #results=%s",
+              cmds.size(), r.length(), results.size()));
+    }
+
+    // check that all users have the same number of possible scenarios
+    int n = scripts.get(0).results.size();
+    for (int i = 1; i < scripts.size(); ++i) {
+      int m = scripts.get(i).results.size();
+      if (m != n) {
+        throw new IllegalArgumentException(String.format(
+                "ERROR: input file is malformatted, user %s should have %s possible results rather than %s",
+                i, n, m));
+      }
+    }
+
+    return new Scenario(filename, scripts);
+  }
+}